@@ -0,0 +1,266 @@
+package edu.virginia.vcgr.genii.client.rns;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.morgan.util.io.StreamUtils;
+
+import edu.virginia.vcgr.genii.client.InstallationProperties;
+
+/**
+ * A checkpoint journal for one CopyMachine.copyTree run, kept in the local user directory. It records the target files that were
+ * started, the chunks of large files that are done with the version of their source, and the files that are done with their size. A
+ * copy of the same source to the same target that finds a journal left behind by a failed run skips the finished files whose source
+ * is still the same, and the finished chunks. Only chunked copies, which go to local targets, resume within a file; a file copied
+ * to the grid, such as into a freshly scheduled replica, is copied again whole. The journal is deleted when the copy succeeds.
+ *
+ * Each line is "<kind> <offset> <length> <target path>", where kind is S (started), C (chunk done) or D (file done, the length is its
+ * size). For V (source version) lines, offset and length are the size and the modification time of the source file. Lines are
+ * buffered and written out per directory and per chunk; a run that is killed may lose its last lines, which only makes a resume redo
+ * more, since files in a directory the journal made count as started.
+ *
+ * @license This file is free software; you can modify and redistribute it under the terms of the Apache License v2.0:
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ */
+public class CopyJournal
+{
+	static private Log _logger = LogFactory.getLog(CopyJournal.class);
+
+	final static String JOURNAL_DIR = "copy-journals";
+
+	private File _file;
+	private Writer _out = null;
+	private boolean _resuming = false; // true if a failed run left this journal.
+	private Set<String> _started = new HashSet<String>();
+	private Map<String, Long> _done = new HashMap<String, Long>(); // size by target path.
+	private Map<String, String> _sources = new HashMap<String, String>(); // source size and modification time by target path.
+	private Map<String, Map<Long, Long>> _chunks = new HashMap<String, Map<Long, Long>>(); // done chunk lengths by offset by target path.
+
+	private CopyJournal(File file)
+	{
+		_file = file;
+	}
+
+	/**
+	 * opens the journal of a copy, and loads what a failed run of the same copy recorded. returns null if there is no user directory to
+	 * keep it in.
+	 */
+	static CopyJournal open(String source, String target)
+	{
+		String userDir = InstallationProperties.getUserDir();
+		if (userDir == null)
+			return null;
+		File dir = new File(userDir, JOURNAL_DIR);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			_logger.error("failed to make the copy journal directory " + dir);
+			return null;
+		}
+		String name;
+		try {
+			name = UUID.nameUUIDFromBytes((source + "\n" + target).getBytes("UTF-8")).toString();
+		} catch (IOException e) {
+			_logger.error("failed to name the copy journal", e);
+			return null;
+		}
+		CopyJournal journal = new CopyJournal(new File(dir, name + ".journal"));
+		if (journal._file.exists())
+			journal.load();
+		try {
+			journal._out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journal._file, true), "UTF-8"));
+		} catch (IOException e) {
+			_logger.error("failed to open the copy journal " + journal._file, e);
+			return null;
+		}
+		if (journal._resuming)
+			_logger.info("resuming the copy of " + source + " to " + target + ": " + journal._done.size() + " files were done.");
+		return journal;
+	}
+
+	private void load()
+	{
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new InputStreamReader(new FileInputStream(_file), "UTF-8"));
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(" ", 4);
+				// a line cut short by the failure is ignored.
+				if (fields.length < 4)
+					continue;
+				String path = fields[3];
+				if (fields[0].equals("S")) {
+					_started.add(path);
+				} else if (fields[0].equals("D")) {
+					_done.put(path, Long.parseLong(fields[2]));
+				} else if (fields[0].equals("C")) {
+					chunksOf(path).put(Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+				} else if (fields[0].equals("V")) {
+					changedSource(path, Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+				}
+			}
+			_resuming = true;
+		} catch (Throwable cause) {
+			_logger.error("failed to read the copy journal " + _file + ", copying everything again", cause);
+			_started.clear();
+			_done.clear();
+			_sources.clear();
+			_chunks.clear();
+		} finally {
+			StreamUtils.close(in);
+		}
+	}
+
+	private Map<Long, Long> chunksOf(String path)
+	{
+		Map<Long, Long> chunks = _chunks.get(path);
+		if (chunks == null) {
+			chunks = new HashMap<Long, Long>();
+			_chunks.put(path, chunks);
+		}
+		return chunks;
+	}
+
+	/**
+	 * notes the version of the source of a target path. if it differs from the one known, or is not known (a negative size), the
+	 * progress recorded for the path is void and is forgotten. returns true if it differed.
+	 */
+	private boolean changedSource(String path, long size, long modified)
+	{
+		String version = size + " " + modified;
+		String known = _sources.put(path, version);
+		if ((size >= 0) && version.equals(known))
+			return false;
+		_done.remove(path);
+		_chunks.remove(path);
+		return true;
+	}
+
+	private synchronized void record(String kind, long offset, long length, String path)
+	{
+		try {
+			_out.write(kind + " " + offset + " " + length + " " + path + "\n");
+		} catch (IOException e) {
+			// the copy goes on, a later resume only redoes more.
+			_logger.error("failed to write the copy journal " + _file, e);
+		}
+	}
+
+	/**
+	 * true if a failed run of this copy left the journal.
+	 */
+	boolean isResuming()
+	{
+		return _resuming;
+	}
+
+	/**
+	 * writes out the buffered lines.
+	 */
+	synchronized void flush()
+	{
+		try {
+			_out.flush();
+		} catch (IOException e) {
+			_logger.error("failed to write the copy journal " + _file, e);
+		}
+	}
+
+	/**
+	 * true if an earlier run finished copying to this target path. isCurrent tells if that copy is still good.
+	 */
+	synchronized boolean isDone(String path)
+	{
+		return _done.containsKey(path);
+	}
+
+	/**
+	 * true if an earlier run finished copying to this target path from a source of this size, and of this modification time if the
+	 * journal has the version of the source.
+	 */
+	synchronized boolean isCurrent(String path, long size, long modified)
+	{
+		Long copied = _done.get(path);
+		if ((copied == null) || (size < 0) || (copied.longValue() != size))
+			return false;
+		String version = _sources.get(path);
+		return (version == null) || version.equals(size + " " + modified);
+	}
+
+	/**
+	 * true if an earlier run started writing this target path or made the directory it is in, so what is there is ours to overwrite.
+	 */
+	synchronized boolean wasStarted(String path)
+	{
+		if (_started.contains(path))
+			return true;
+		int slash = path.lastIndexOf('/');
+		return (slash > 0) && _started.contains(path.substring(0, slash));
+	}
+
+	/**
+	 * true if an earlier run finished the chunk of this target path with the offset and length. a chunk of another length, from a run
+	 * with another chunk size, does not count.
+	 */
+	synchronized boolean isChunkDone(String path, long offset, long length)
+	{
+		Map<Long, Long> chunks = _chunks.get(path);
+		Long done = (chunks != null) ? chunks.get(offset) : null;
+		return (done != null) && (done.longValue() == length);
+	}
+
+	/**
+	 * records the size and modification time of the source of a chunked copy, before its chunks are checked. what an earlier run did for
+	 * the path is forgotten if its source was different.
+	 */
+	synchronized void source(String path, long size, long modified)
+	{
+		if (changedSource(path, size, modified))
+			record("V", size, modified, path);
+	}
+
+	synchronized void started(String path)
+	{
+		if (_started.add(path))
+			record("S", 0, 0, path);
+	}
+
+	synchronized void chunkDone(String path, long offset, long length)
+	{
+		chunksOf(path).put(offset, length);
+		record("C", offset, length, path);
+		flush();
+	}
+
+	synchronized void done(String path, long size)
+	{
+		_done.put(path, size);
+		_chunks.remove(path);
+		record("D", 0, size, path);
+	}
+
+	/**
+	 * closes the journal, and deletes it if the copy succeeded.
+	 */
+	synchronized void close(boolean succeeded)
+	{
+		StreamUtils.close(_out);
+		if (succeeded && !_file.delete())
+			_logger.error("failed to delete the copy journal " + _file);
+		else if (!succeeded)
+			_logger.info("kept the copy journal " + _file + ", the same copy will resume from it.");
+	}
+}
@@ -1,10 +1,33 @@
 package edu.virginia.vcgr.genii.client.rns;
 
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -12,7 +35,12 @@ import org.morgan.util.io.DataTransferStatistics;
 import org.morgan.util.io.StreamUtils;
 
 import edu.virginia.vcgr.genii.client.cmd.tools.MkdirTool;
+import edu.virginia.vcgr.genii.client.cmd.tools.QosManagerTool;
+import edu.virginia.vcgr.genii.client.context.ContextManager;
+import edu.virginia.vcgr.genii.client.context.ICallingContext;
 import edu.virginia.vcgr.genii.client.gpath.GeniiPath;
+import edu.virginia.vcgr.genii.client.gpath.GeniiPathType;
+import edu.virginia.vcgr.genii.client.resource.TypeInformation;
 import edu.virginia.vcgr.genii.ui.progress.TaskProgressListener;
 
 /**
@@ -26,16 +54,52 @@ import edu.virginia.vcgr.genii.ui.progress.TaskProgressListener;
 public class CopyMachine
 {
 	static private Log _logger = LogFactory.getLog(CopyMachine.class);
-	static private Semaphore semaphore = new Semaphore(8);
+
+	final static int COPY_THREADS = 8; // the copy limit for a container that the QoS database does not know.
+	final static int MAX_COPY_LIMIT = 64; // copies into one container never go beyond this.
+	final static String LOCAL_CONTAINER = "local";
+	final static String UNKNOWN_CONTAINER = "unknown";
+
+	// a copy holds a permit of its target container's limiter from when it is queued until it is done, so callers block instead of
+	// queuing without bound.
+	static private ConcurrentHashMap<String, CopyLimiter> _limiters = new ConcurrentHashMap<String, CopyLimiter>();
+	static private Map<String, Integer> _seeds = null; // starting limits by container RnsPath.
+	// the container address of each RnsPath of the seeds, resolved when it is first needed. UNKNOWN_CONTAINER if it cannot be.
+	static private ConcurrentHashMap<String, String> _seedAddresses = new ConcurrentHashMap<String, String>();
 	static private Object mutex = new Object();
+	// shared by all copy machines. it is not bounded itself, the limiters bound the copies it runs.
+	static private ExecutorService _copyExecutor = Executors.newCachedThreadPool(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, "copy-machine");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	// a plain copy of a file of at least CHUNK_THRESHOLD bytes into a local file is split into CHUNK_SIZE ranges, and up to CHUNK_STREAMS
+	// of them are copied at once. set with the system properties of the same names.
+	final static long CHUNK_THRESHOLD = Long.getLong("edu.virginia.vcgr.genii.client.rns.CopyMachine.CHUNK_THRESHOLD", 1L << 30);
+	final static long CHUNK_SIZE = Math.max(Long.getLong("edu.virginia.vcgr.genii.client.rns.CopyMachine.CHUNK_SIZE", 64L << 20), 1);
+	final static int CHUNK_STREAMS = Math.max(Integer.getInteger("edu.virginia.vcgr.genii.client.rns.CopyMachine.CHUNK_STREAMS", 4), 1);
+	final static int CHUNK_BUFFER = 1 << 20; // bytes a chunk reads at a time.
+
+	final static int TREE_THREADS = 16; // directory listings and plain file copies that run at the same time.
+
+	// a work-stealing pool for copyTree, shared by all copy machines. its threads are daemons.
+	static private ForkJoinPool _treePool = new ForkJoinPool(TREE_THREADS);
 
 	private String _source;
 	private String _target;
-	private String _currentTarget; // the directory we are currently targeting.
 	private PrintWriter _stderr; // gets error reports during the copy process.
 	TaskProgressListener _updates;
 	boolean _force; // true if we should overwrite things that get in the way.
 	RNSPath _logLocation; // non-null if this is a reliable transfer
+	private List<Future<?>> _pending = Collections.synchronizedList(new ArrayList<Future<?>>()); // reliable copies started by copyTree.
+	private CopyJournal _journal = null; // checkpoints of the running copyTree, null if there is none.
+	private ICallingContext _context = null; // of the thread that runs copyTree, assumed by its tasks in the pool.
 
 	final static int MAX_COPY_DEPTH = 16; // we do not try to copy hierarchies deeper than this.
 
@@ -48,7 +112,6 @@ public class CopyMachine
 	{
 		_source = sourceIn;
 		_target = targetIn;
-		_currentTarget = targetIn;
 		_updates = updateSink;
 		_force = force;
 		_stderr = stderrIn;
@@ -64,72 +127,274 @@ public class CopyMachine
 
 	/**
 	 * traverses a directory tree at the source (even if just a file) and replicates the source into the target path, which must be a
-	 * directory.
+	 * directory. for a reliable transfer, this returns once all of the file copies it started are done. the progress is kept in a
+	 * CopyJournal, so if this fails, running the same copy again skips the work that was done.
 	 */
 	public PathOutcome copyTree()
+	{
+		try {
+			_context = ContextManager.getExistingContext();
+		} catch (IOException e) {
+			_logger.error("failed to get the calling context for copying " + _source, e);
+			return PathOutcome.OUTCOME_ERROR;
+		}
+		if ((_source != null) && (_target != null))
+			_journal = CopyJournal.open(_source, _target);
+		PathOutcome toReturn = traverseTree();
+		PathOutcome joined = joinCopies();
+		if (toReturn.same(PathOutcome.OUTCOME_SUCCESS))
+			toReturn = joined;
+		if (_journal != null) {
+			_journal.close(toReturn.same(PathOutcome.OUTCOME_SUCCESS));
+			_journal = null;
+		}
+		return toReturn;
+	}
+
+	/**
+	 * true if the journal shows that an earlier run of this copy created the target path, so it is not in the way.
+	 */
+	private boolean createdEarlier(GeniiPath target)
+	{
+		return (_journal != null) && _journal.wasStarted(target.toString());
+	}
+
+	/**
+	 * waits for the reliable copies started by copyTree. returns an error if any of them failed.
+	 */
+	private PathOutcome joinCopies()
+	{
+		PathOutcome toReturn = PathOutcome.OUTCOME_SUCCESS;
+		// the tree is done, so nothing adds to the list anymore.
+		for (Future<?> copy : _pending) {
+			try {
+				copy.get();
+			} catch (InterruptedException e) {
+				_logger.error("interrupted while waiting for file copies to finish", e);
+				Thread.currentThread().interrupt();
+				toReturn = PathOutcome.OUTCOME_ERROR;
+				break;
+			} catch (ExecutionException e) {
+				_logger.error("a reliable file copy failed", e.getCause());
+				toReturn = PathOutcome.OUTCOME_ERROR;
+			}
+		}
+		_pending.clear();
+		return toReturn;
+	}
+
+	private PathOutcome traverseTree()
 	{
 		if ((_source == null) || (_target == null))
 			return PathOutcome.OUTCOME_NOTHING;
 		if (_logger.isDebugEnabled())
 			_logger.debug("into copyTree on " + _source);
-		_currentTarget = _target; // reset for this copy.
-		// we create paths in target on directory entry, and we copy files when
-		// we hit them.
-		GeniiPathRecurser cloner =
-			new GeniiPathRecurser(new EnterDirectoryGeniiPath(this), new ExitDirectoryGeniiPath(this, _logLocation), new CopyFileGeniiPath(
-				this, _logLocation), null);
-		cloner.setMaximumRecursionDepth(MAX_COPY_DEPTH);
+		GeniiPath sourceCheck = new GeniiPath(_source);
 		GeniiPath targetCheck = new GeniiPath(_target);
-		if (targetCheck.exists()) {
+		// a target that an earlier run created is filled the same way again.
+		boolean resumed = createdEarlier(targetCheck) && targetCheck.exists();
+		if (targetCheck.exists() && !resumed) {
 			// copying to an existing destination is simpler.
-			return cloner.recursePath(new GeniiPath(_source));
+			return _treePool.invoke(new CopyTask(sourceCheck, _target + "/" + sourceCheck.getName(), 0));
 		}
 		// we do not have a target, so we need to create one.
-		GeniiPath sourceCheck = new GeniiPath(_source);
 		if (sourceCheck.isDirectory()) {
 			// our source is a directory, so we'll stuff things into it.
-			try {
-				ArrayList<String> dirs = new ArrayList<String>();
-				dirs.add(_target);
-				int worked = MkdirTool.makeDirectory(false, null, null, dirs, _stderr);
-				if (worked != 0) {
-					_logger.error("failed to make directory in target of " + targetCheck);
+			if (!resumed) {
+				// the intent is journaled first, so a run that dies right after the mkdir still owns the directory.
+				if (_journal != null) {
+					_journal.started(targetCheck.toString());
+					_journal.flush();
+				}
+				try {
+					ArrayList<String> dirs = new ArrayList<String>();
+					dirs.add(_target);
+					int worked = MkdirTool.makeDirectory(false, null, null, dirs, _stderr);
+					if (worked != 0) {
+						_logger.error("failed to make directory in target of " + targetCheck);
+						return PathOutcome.OUTCOME_NO_ACCESS;
+					}
+				} catch (Throwable cause) {
+					if (_logger.isDebugEnabled())
+						_logger.debug("failed to make missing directory, got exception", cause);
 					return PathOutcome.OUTCOME_NO_ACCESS;
 				}
-			} catch (Throwable cause) {
-				if (_logger.isDebugEnabled())
-					_logger.debug("failed to make missing directory, got exception", cause);
-				return PathOutcome.OUTCOME_NO_ACCESS;
 			}
 			// copy all of the contents in the source instead.
-			GeniiPathHierarchyHelper gph = new GeniiPathHierarchyHelper();
-			for (GeniiPath path : gph.getContents(sourceCheck)) {
-				if (_logger.isDebugEnabled())
-					_logger.debug("copying from " + path + " to target " + _target);
-				PathOutcome outcome = cloner.recursePath(path);
-				// bail if we see a problem.
-				if (outcome.differs(PathOutcome.OUTCOME_SUCCESS)) {
-					_logger.error("failed to copy " + path + " to target " + _target);
-					return outcome;
+			return _treePool.invoke(new CopyTask(sourceCheck, _target, 0, true));
+		}
+		// this is just a file being copied to a new name.
+		return copyOneFile(_source, _target, _logLocation, this, null);
+	}
+
+	/**
+	 * the concurrency limit for the copies into one container. it starts from the seed and is tuned with AIMD: after every window of
+	 * limit copies the throughput of the window is compared with the last one. the limit grows by one while the throughput grows, and it is
+	 * cut when the throughput drops or a copy fails. the throughput is in bytes, or in copies when the sizes are not known (reliable
+	 * copies).
+	 */
+	static class CopyLimiter extends Semaphore
+	{
+		private static final long serialVersionUID = 1L;
+
+		final static double GAIN = 1.05; // the throughput must grow this much for another copy.
+		final static double LOSS = 0.8; // a throughput below this share of the last window is a drop.
+
+		private int _limit;
+		private int _windowCopies = 0;
+		private long _windowBytes = 0;
+		private long _windowStart = System.nanoTime();
+		private double _lastRate = 0;
+
+		CopyLimiter(int seed)
+		{
+			super(seed, true);
+			_limit = seed;
+		}
+
+		/**
+		 * records a copy that released its permit. bytes is zero if the size is not known.
+		 */
+		synchronized void completed(long bytes, boolean succeeded)
+		{
+			if (!succeeded) {
+				shrink(_limit / 2);
+				return;
+			}
+			_windowCopies++;
+			_windowBytes += bytes;
+			if (_windowCopies < _limit)
+				return;
+			long elapsed = Math.max(System.nanoTime() - _windowStart, 1);
+			double rate = (_windowBytes > 0 ? _windowBytes : _windowCopies) / (double) elapsed;
+			if (rate > _lastRate * GAIN) {
+				if (_limit < MAX_COPY_LIMIT) {
+					_limit++;
+					release();
 				}
+			} else if (rate < _lastRate * LOSS) {
+				shrink(_limit * 3 / 4);
 			}
-			return PathOutcome.OUTCOME_SUCCESS;
+			_lastRate = rate;
+			startWindow();
 		}
-		// this is just a file being copied to a new name.
-		return copyOneFile(_source, _target, _logLocation);
+
+		synchronized int limit()
+		{
+			return _limit;
+		}
+
+		private void shrink(int limit)
+		{
+			limit = Math.max(limit, 1);
+			if (limit < _limit) {
+				// copies that hold permits now keep them, the limit is reached as they finish.
+				reducePermits(_limit - limit);
+				_limit = limit;
+				if (_logger.isDebugEnabled())
+					_logger.debug("copy limit lowered to " + _limit);
+			}
+			startWindow();
+		}
+
+		private void startWindow()
+		{
+			_windowCopies = 0;
+			_windowBytes = 0;
+			_windowStart = System.nanoTime();
+		}
+	}
+
+	/**
+	 * the limiter for copies into a target directory, shared with every other copy into the same container.
+	 */
+	static CopyLimiter limiterFor(String targetDir)
+	{
+		String container = containerOf(targetDir);
+		CopyLimiter limiter = _limiters.get(container);
+		if (limiter == null) {
+			Integer seed = null;
+			if (!container.equals(LOCAL_CONTAINER) && !container.equals(UNKNOWN_CONTAINER))
+				seed = seedFor(container);
+			limiter = new CopyLimiter(seed != null ? Math.min(seed, MAX_COPY_LIMIT) : COPY_THREADS);
+			CopyLimiter raced = _limiters.putIfAbsent(container, limiter);
+			if (raced != null)
+				limiter = raced;
+		}
+		return limiter;
+	}
+
+	/**
+	 * the address of the container that holds a directory, as QosManagerTool.container_address gives it.
+	 */
+	private static String containerOf(String dir)
+	{
+		GeniiPath path = new GeniiPath(dir);
+		if (path.pathType() != GeniiPathType.Grid)
+			return LOCAL_CONTAINER;
+		try {
+			RNSPath rns = RNSPath.getCurrent().lookup(path.path(), RNSPathQueryFlags.MUST_EXIST);
+			return QosManagerTool.container_address(rns.getEndpoint());
+		} catch (Throwable cause) {
+			if (_logger.isDebugEnabled())
+				_logger.debug("failed to find the container of " + dir, cause);
+			return UNKNOWN_CONTAINER;
+		}
+	}
+
+	/**
+	 * the starting limit of a container from the local QoS database, or null if it is not there. the RnsPaths of the database are
+	 * resolved to container addresses one at a time, only until the container is found, and each of them only once.
+	 */
+	private static Integer seedFor(String container)
+	{
+		for (Map.Entry<String, Integer> entry : concurrencySeeds().entrySet()) {
+			String address = _seedAddresses.get(entry.getKey());
+			if (address == null) {
+				address = containerOf(entry.getKey());
+				_seedAddresses.putIfAbsent(entry.getKey(), address);
+			}
+			if (address.equals(container))
+				return entry.getValue();
+		}
+		return null;
+	}
+
+	/**
+	 * the starting limits from the local QoS database by RnsPath, loaded on first use. this only reads the local file.
+	 */
+	private static synchronized Map<String, Integer> concurrencySeeds()
+	{
+		if (_seeds == null) {
+			try {
+				_seeds = QosManagerTool.copy_concurrency_seeds();
+			} catch (Throwable cause) {
+				_logger.error("failed to read copy limits from the QoS database", cause);
+				_seeds = new HashMap<String, Integer>();
+			}
+		}
+		return _seeds;
 	}
 
 	/**
 	 * copies a single file from the source location to the target. if the target is a directory, the file will be created inside of it. if
-	 * the target is a file, then it is overwritten.
+	 * the target is a file, then it is overwritten. a reliable copy (with a log location) runs in the background.
 	 */
 	public static PathOutcome copyOneFile(String sourceIn, String targetIn, RNSPath logLocation)
+	{
+		return copyOneFile(sourceIn, targetIn, logLocation, null, null);
+	}
+
+	/**
+	 * the same as above, for the copy machine if that is non-null: a reliable copy's completion is added to its pending list, the progress
+	 * of a chunked copy goes to its listener, and the copy is recorded in its journal. the limiter of the target's container is looked up
+	 * if it is null.
+	 */
+	static PathOutcome copyOneFile(String sourceIn, String targetIn, RNSPath logLocation, CopyMachine machine, CopyLimiter limiter)
 	{
 		if ((sourceIn == null) || (targetIn == null))
 			return PathOutcome.OUTCOME_NOTHING;
 		String sourceName = null;
-		OutputStream out = null;
-		InputStream in = null;
 		PathOutcome toReturn = PathOutcome.OUTCOME_ERROR;
 		if (_logger.isDebugEnabled())
 			_logger.debug("copyOneFile from " + sourceIn + " to " + targetIn);
@@ -153,23 +418,278 @@ public class CopyMachine
 			_logger.error("trying to copy onto a non-file object for target: " + target);
 			return PathOutcome.OUTCOME_WRONG_TYPE;
 		}
+		final CopyJournal journal = (machine != null) ? machine._journal : null;
+		final String targetKey = target.toString();
+		long[] info = null;
+		if ((journal != null) && journal.isDone(targetKey) && target.exists()) {
+			// only a file that an earlier run finished costs a look at the source here, to tell if it is still the same.
+			info = fileInfo(source);
+			if (journal.isCurrent(targetKey, info[0], info[1])) {
+				if (_logger.isDebugEnabled())
+					_logger.debug("an earlier run already copied " + target);
+				return PathOutcome.OUTCOME_SUCCESS;
+			}
+		}
+		ICallingContext context = null;
 		if (logLocation != null) {
+			// the reliable copy runs on a pooled thread, which takes on this thread's context.
 			try {
-				semaphore.acquire();
-			} catch (InterruptedException e) {
-				_logger.error("caught exception while acquiring semaphore", e);
+				context = ContextManager.getExistingContext();
+			} catch (IOException e) {
+				_logger.error("failed to get the calling context for a reliable copy", e);
+				return PathOutcome.OUTCOME_ERROR;
 			}
-			ConcurrentCopyMachine copier = new ConcurrentCopyMachine(sourceIn, targetIn, logLocation, semaphore, mutex);
-			new Thread(copier).start();
-			toReturn = PathOutcome.OUTCOME_SUCCESS;
-		} else {
+		}
+		if (limiter == null)
+			limiter = limiterFor(target.pathType().toString() + ":" + target.getParent());
+		try {
+			limiter.acquire();
+		} catch (InterruptedException e) {
+			_logger.error("caught exception while acquiring semaphore", e);
+			Thread.currentThread().interrupt();
+			return PathOutcome.OUTCOME_ERROR;
+		}
+		if (journal != null)
+			journal.started(targetKey);
+		if (logLocation != null) {
+			// the copier releases the permit when it is done.
+			final ConcurrentCopyMachine copier = new ConcurrentCopyMachine(sourceIn, targetIn, logLocation, limiter, mutex);
+			final CopyLimiter copyLimiter = limiter;
+			final ICallingContext copyContext = context;
+			final GeniiPath copySource = source;
+			final GeniiPath copyTarget = target;
+			Future<?> copy = _copyExecutor.submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					boolean succeeded = false;
+					Closeable assumed = ContextManager.temporarilyAssumeContext(copyContext);
+					try {
+						copier.run();
+						// the copier only reports some failures by throwing, so the result is checked by its size.
+						long expected = fileInfo(copySource)[0];
+						if ((expected >= 0) && (fileInfo(copyTarget)[0] != expected))
+							throw new IllegalStateException("reliable copy of " + copySource + " to " + copyTarget + " is incomplete");
+						succeeded = true;
+						// a copy that could not be checked is not recorded as done, so a resumed run copies it again.
+						if ((journal != null) && (expected >= 0))
+							journal.done(targetKey, expected);
+					} finally {
+						copyLimiter.completed(0, succeeded);
+						StreamUtils.close(assumed);
+					}
+				}
+			});
+			if (machine != null)
+				machine._pending.add(copy);
+			// the copier writes the target itself, so we must not open it here.
+			return PathOutcome.OUTCOME_SUCCESS;
+		}
+
+		long[] transferred = new long[1];
+		try {
+			// only a local target can take a chunked copy, so only then is the size of the source needed up front.
+			if ((info == null) && (target.pathType() != GeniiPathType.Grid))
+				info = fileInfo(source);
+			long size = (target.pathType() != GeniiPathType.Grid) ? info[0] : -1;
+			if (size >= CHUNK_THRESHOLD) {
+				if (journal != null)
+					journal.source(targetKey, info[0], info[1]);
+				toReturn = copyChunked(source, target, size, (machine != null) ? machine._updates : null, journal, transferred);
+			} else {
+				toReturn = copyStreams(source, target, transferred);
+			}
+			if ((journal != null) && toReturn.same(PathOutcome.OUTCOME_SUCCESS))
+				journal.done(targetKey, (size >= CHUNK_THRESHOLD) ? size : transferred[0]);
+		} finally {
+			limiter.release();
+			limiter.completed(transferred[0], toReturn.same(PathOutcome.OUTCOME_SUCCESS));
+		}
+		return toReturn;
+	}
+
+	/**
+	 * the size of a file in bytes and its modification time in milliseconds, or a size of -1 if they cannot be found out.
+	 */
+	private static long[] fileInfo(GeniiPath file)
+	{
+		try {
+			if (file.pathType() != GeniiPathType.Grid) {
+				File local = new File(file.path());
+				return local.exists() ? new long[] { local.length(), local.lastModified() } : new long[] { -1, 0 };
+			}
+			RNSPath rns = RNSPath.getCurrent().lookup(file.path(), RNSPathQueryFlags.MUST_EXIST);
+			TypeInformation typeInfo = new TypeInformation(rns.getEndpoint());
+			if (typeInfo.isByteIO()) {
+				Calendar modified = typeInfo.getByteIOModificationTime();
+				return new long[] { typeInfo.getByteIOSize(), (modified != null) ? modified.getTimeInMillis() : 0 };
+			}
+		} catch (Throwable cause) {
+			if (_logger.isDebugEnabled())
+				_logger.debug("failed to get the size of " + file, cause);
+		}
+		return new long[] { -1, 0 };
+	}
+
+	/**
+	 * copies a large file as CHUNK_SIZE ranges, up to CHUNK_STREAMS at a time. each range is read through its own input stream and written
+	 * at its offset in the local target file. chunks that the journal has from an earlier run are skipped, and finished chunks are added
+	 * to it. the number of bytes copied is stored in transferred[0].
+	 */
+	private static PathOutcome copyChunked(GeniiPath source, GeniiPath target, final long size, final TaskProgressListener updates,
+		final CopyJournal journal, long[] transferred)
+	{
+		ICallingContext context = null;
+		try {
+			context = ContextManager.getExistingContext();
+		} catch (IOException e) {
+			_logger.error("failed to get the calling context for a chunked copy", e);
+			return PathOutcome.OUTCOME_ERROR;
+		}
+		RandomAccessFile file = null;
+		PathOutcome toReturn = PathOutcome.OUTCOME_SUCCESS;
+		final AtomicLong done = new AtomicLong();
+		final String targetKey = target.toString();
+		long skipped = 0;
+		final Semaphore streams = new Semaphore(CHUNK_STREAMS);
+		List<Future<Long>> chunks = new ArrayList<Future<Long>>();
+		try {
+			file = new RandomAccessFile(target.path(), "rw");
+			file.setLength(size);
+			FileChannel channel = file.getChannel();
+			final String name = source.getName();
+			for (long offset = 0; offset < size; offset += CHUNK_SIZE) {
+				final long chunkOffset = offset;
+				final long chunkLength = Math.min(CHUNK_SIZE, size - offset);
+				if ((journal != null) && journal.isChunkDone(targetKey, chunkOffset, chunkLength)) {
+					skipped += chunkLength;
+					done.addAndGet(chunkLength);
+					continue;
+				}
+				streams.acquire();
+				ChunkCopy chunk = new ChunkCopy(source, channel, chunkOffset, chunkLength, context)
+				{
+					@Override
+					public Long call() throws IOException
+					{
+						try {
+							long copied = super.call();
+							if (journal != null)
+								journal.chunkDone(targetKey, chunkOffset, chunkLength);
+							long total = done.addAndGet(copied);
+							if (updates != null) {
+								synchronized (updates) {
+									updates.updateSubTitle(String.format("%s (%d%%)", name, total * 100 / size));
+								}
+							}
+							return copied;
+						} finally {
+							streams.release();
+						}
+					}
+				};
+				chunks.add(_copyExecutor.submit(chunk));
+			}
+			for (Future<Long> chunk : chunks) {
+				try {
+					chunk.get();
+				} catch (ExecutionException e) {
+					_logger.error("failed to copy a chunk of " + source, e.getCause());
+					toReturn = PathOutcome.OUTCOME_ERROR;
+				}
+			}
+		} catch (InterruptedException e) {
+			_logger.error("interrupted during a chunked copy of " + source, e);
+			Thread.currentThread().interrupt();
+			toReturn = PathOutcome.OUTCOME_ERROR;
+		} catch (Throwable cause) {
+			_logger.error("failed to open the target of a chunked copy: " + target, cause);
+			toReturn = PathOutcome.OUTCOME_NO_ACCESS;
+		} finally {
+			for (Future<Long> chunk : chunks)
+				chunk.cancel(true);
+			StreamUtils.close(file);
+		}
+		transferred[0] = done.get() - skipped;
+		if (_logger.isDebugEnabled())
+			_logger.debug("Transferred " + transferred[0] + " bytes in " + chunks.size() + " chunks from " + source + " to " + target + ", "
+				+ skipped + " bytes were copied by an earlier run.");
+		return toReturn;
+	}
+
+	/**
+	 * copies the range [offset, offset + length) of a source file to the same range of a target file channel.
+	 */
+	private static class ChunkCopy implements Callable<Long>
+	{
+		private GeniiPath _source;
+		private FileChannel _target;
+		private long _offset;
+		private long _length;
+		private ICallingContext _context;
+
+		public ChunkCopy(GeniiPath source, FileChannel target, long offset, long length, ICallingContext context)
+		{
+			_source = source;
+			_target = target;
+			_offset = offset;
+			_length = length;
+			_context = context;
+		}
+
+		@Override
+		public Long call() throws IOException
+		{
+			Closeable assumed = ContextManager.temporarilyAssumeContext(_context);
+			InputStream in = null;
 			try {
-				in = source.openInputStream();
-			} catch (Throwable cause) {
-				_logger.error("failed to open input stream for copying", cause);
-				return PathOutcome.OUTCOME_NO_ACCESS;
+				in = _source.openInputStream();
+				long skipped = 0;
+				while (skipped < _offset) {
+					long step = in.skip(_offset - skipped);
+					if (step <= 0) {
+						// skip may stop early, reading one byte tells a slow stream from the end.
+						if (in.read() < 0)
+							throw new EOFException("source ended before offset " + _offset);
+						step = 1;
+					}
+					skipped += step;
+				}
+				ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(CHUNK_BUFFER, _length));
+				long copied = 0;
+				while (copied < _length) {
+					buffer.clear();
+					buffer.limit((int) Math.min(buffer.capacity(), _length - copied));
+					int read = in.read(buffer.array(), 0, buffer.limit());
+					if (read < 0)
+						throw new EOFException("source ended at " + (_offset + copied) + " in a chunk up to " + (_offset + _length));
+					buffer.limit(read);
+					while (buffer.hasRemaining())
+						copied += _target.write(buffer, _offset + copied);
+				}
+				return copied;
+			} finally {
+				StreamUtils.close(in);
+				StreamUtils.close(assumed);
 			}
 		}
+	}
+
+	/**
+	 * opens both ends of a plain copy and copies the bytes. the number of bytes copied is stored in transferred[0].
+	 */
+	private static PathOutcome copyStreams(GeniiPath source, GeniiPath target, long[] transferred)
+	{
+		OutputStream out = null;
+		InputStream in = null;
+		PathOutcome toReturn = PathOutcome.OUTCOME_ERROR;
+		try {
+			in = source.openInputStream();
+		} catch (Throwable cause) {
+			_logger.error("failed to open input stream for copying", cause);
+			return PathOutcome.OUTCOME_NO_ACCESS;
+		}
 
 		try {
 			out = target.openOutputStream();
@@ -182,7 +702,7 @@ public class CopyMachine
 			return PathOutcome.OUTCOME_NO_ACCESS;
 		}
 
-		toReturn = copy(in, out);
+		toReturn = copy(in, out, transferred);
 
 		try {
 			out.flush();
@@ -204,11 +724,20 @@ public class CopyMachine
 	 * copies bytes from the input stream to the output stream.
 	 */
 	public static PathOutcome copy(InputStream in, OutputStream out)
+	{
+		return copy(in, out, new long[1]);
+	}
+
+	/**
+	 * the same as above, and the number of bytes copied is stored in transferred[0].
+	 */
+	private static PathOutcome copy(InputStream in, OutputStream out, long[] transferred)
 	{
 		if ((in == null) || (out == null))
 			return PathOutcome.OUTCOME_NOTHING;
 		try {
 			DataTransferStatistics stat = StreamUtils.copyStream(in, out);
+			transferred[0] = stat.bytesTransferred();
 			// we have to take the result from above as good enough (that there was no exception
 			// from running the copy), because even if there were zero bytes copied, that might
 			// be right, for a zero length file.
@@ -221,102 +750,143 @@ public class CopyMachine
 		}
 	}
 
-	private static class CopyFileGeniiPath implements TreeTraversalActionAlert<GeniiPath>
+	/**
+	 * copies one source path to its own resolved target path. a directory is created at the target and its contents are copied by subtasks
+	 * that the pool can steal, so listings and file copies in different directories run at the same time.
+	 */
+	private class CopyTask extends RecursiveTask<PathOutcome>
 	{
-		private CopyMachine parent;
-		private RNSPath _logLocation;
+		private static final long serialVersionUID = 1L;
+
+		private GeniiPath _path;
+		private String _targetPath;
+		private int _depth;
+		private boolean _contentsOnly; // true if the target directory already exists for us.
+		private CopyLimiter _limiter; // of the container that holds the target's directory, null if not known yet.
+
+		public CopyTask(GeniiPath path, String targetPath, int depth)
+		{
+			this(path, targetPath, depth, false);
+		}
 
-		public CopyFileGeniiPath(CopyMachine cm, RNSPath logLocation)
+		public CopyTask(GeniiPath path, String targetPath, int depth, CopyLimiter limiter)
 		{
-			parent = cm;
-			_logLocation = logLocation;
+			this(path, targetPath, depth, false);
+			_limiter = limiter;
+		}
+
+		public CopyTask(GeniiPath path, String targetPath, int depth, boolean contentsOnly)
+		{
+			_path = path;
+			_targetPath = targetPath;
+			_depth = depth;
+			_contentsOnly = contentsOnly;
 		}
 
 		@Override
-		public PathOutcome respond(GeniiPath path)
+		protected PathOutcome compute()
 		{
-			if (path == null)
-				return PathOutcome.OUTCOME_NOTHING;
-			if (_logger.isDebugEnabled())
-				_logger.debug("CopyFileGeniiPath hit the action for " + path.toString());
-			GeniiPath targetFile = new GeniiPath(parent._currentTarget + "/" + path.getName());
-			if (!parent._force && targetFile.exists()) {
-				_logger.error("force is false, and the target file already exists at path: " + targetFile.toString());
-				return PathOutcome.OUTCOME_EXISTENT;
-			}
-			if (parent._updates != null) {
-				String partialDir = (new GeniiPath(path.getParent())).getName();
-				parent._updates.updateSubTitle(partialDir + "/" + path.getName());
+			// the pool's threads are shared, so the caller's context is taken on for this task only.
+			Closeable assumed = ContextManager.temporarilyAssumeContext(_context);
+			try {
+				if (_path.isDirectory())
+					return copyDirectory();
+				return copyFile();
+			} catch (Throwable cause) {
+				// caught here so that one bad path does not cancel the copies of its siblings.
+				_logger.error("failed to copy " + _path + " to " + _targetPath, cause);
+				return PathOutcome.OUTCOME_ERROR;
+			} finally {
+				StreamUtils.close(assumed);
 			}
-			return copyOneFile(path.toString(), targetFile.toString(), _logLocation);
 		}
-	}
 
-	private static class EnterDirectoryGeniiPath implements TreeTraversalActionAlert<GeniiPath>
-	{
-		private CopyMachine parent;
-
-		public EnterDirectoryGeniiPath(CopyMachine cm)
+		private PathOutcome copyDirectory()
 		{
-			parent = cm;
+			if (_depth > MAX_COPY_DEPTH) {
+				_logger.error("hierarchy is too deep to copy at: " + _path);
+				return PathOutcome.OUTCOME_ERROR;
+			}
+			if (!_contentsOnly) {
+				PathOutcome made = makeTargetDirectory();
+				if (made.differs(PathOutcome.OUTCOME_SUCCESS))
+					return made;
+			}
+			GeniiPathHierarchyHelper gph = new GeniiPathHierarchyHelper();
+			Collection<GeniiPath> contents = gph.getContents(_path);
+			if (contents == null) {
+				_logger.error("failed to list the contents of " + _path);
+				return PathOutcome.OUTCOME_NO_ACCESS;
+			}
+			List<CopyTask> subtasks = new ArrayList<CopyTask>(contents.size());
+			// every file in here goes to the same container.
+			CopyLimiter limiter = contents.isEmpty() ? null : limiterFor(_targetPath);
+			for (GeniiPath child : contents) {
+				if (_logger.isDebugEnabled())
+					_logger.debug("copying from " + child + " to target " + _targetPath);
+				subtasks.add(new CopyTask(child, _targetPath + "/" + child.getName(), _depth + 1, limiter));
+			}
+			invokeAll(subtasks);
+			if (_journal != null)
+				_journal.flush();
+			// report the first problem in listing order.
+			for (CopyTask subtask : subtasks) {
+				PathOutcome outcome = subtask.join();
+				if (outcome.differs(PathOutcome.OUTCOME_SUCCESS)) {
+					_logger.error("failed to copy " + subtask._path + " to target " + subtask._targetPath);
+					return outcome;
+				}
+			}
+			return PathOutcome.OUTCOME_SUCCESS;
 		}
 
-		@Override
-		public PathOutcome respond(GeniiPath path)
+		private PathOutcome makeTargetDirectory()
 		{
-			if (path == null)
-				return PathOutcome.OUTCOME_NOTHING;
-			if (_logger.isDebugEnabled())
-				_logger.debug("EnterDirectoryGeniiPath hit the action for " + path.toString());
-			parent._currentTarget = parent._currentTarget.concat("/" + path.getName());
-			if (_logger.isDebugEnabled())
-				_logger.debug("added to current target, now: " + parent._currentTarget);
-			GeniiPath target = new GeniiPath(parent._currentTarget);
+			GeniiPath target = new GeniiPath(_targetPath);
 			if (target.exists()) {
-				if (!parent._force || target.isFile())
+				// a directory that an earlier run of this copy made is not in the way either.
+				if (createdEarlier(target) && target.isDirectory())
+					return PathOutcome.OUTCOME_SUCCESS;
+				if (!_force || target.isFile())
 					return PathOutcome.OUTCOME_EXISTENT;
 				// a directory that's in the way is not a problem in force mode.
 				return PathOutcome.OUTCOME_SUCCESS;
 			}
-			ArrayList<String> files = new ArrayList<String>(0);
-			files.add(parent._currentTarget);
+			// journaled before it is made, in case this run dies right after.
+			if (_journal != null) {
+				_journal.started(target.toString());
+				_journal.flush();
+			}
+			ArrayList<String> files = new ArrayList<String>(1);
+			files.add(_targetPath);
 			try {
-				int worked = MkdirTool.makeDirectory(false, null, null, files, parent._stderr);
+				int worked = MkdirTool.makeDirectory(false, null, null, files, _stderr);
 				if (worked != 0) {
-					_logger.error("failed to make directory in target of " + parent._currentTarget);
+					_logger.error("failed to make directory in target of " + _targetPath);
 					return PathOutcome.OUTCOME_NO_ACCESS;
 				}
 			} catch (Throwable cause) {
-				_logger.error("entering directory creation attempt raised exception for: " + parent._currentTarget, cause);
+				_logger.error("directory creation attempt raised exception for: " + _targetPath, cause);
 				return PathOutcome.OUTCOME_ERROR;
 			}
 			return PathOutcome.OUTCOME_SUCCESS;
 		}
-	}
-
-	private static class ExitDirectoryGeniiPath implements TreeTraversalActionAlert<GeniiPath>
-	{
-		private CopyMachine parent;
-
-		public ExitDirectoryGeniiPath(CopyMachine cm, RNSPath logLocation)
-		{
-			parent = cm;
-		}
 
-		@Override
-		public PathOutcome respond(GeniiPath path)
+		private PathOutcome copyFile()
 		{
-			if (path == null)
-				return PathOutcome.OUTCOME_NOTHING;
-			if (_logger.isDebugEnabled())
-				_logger.debug("ExitDirectoryGeniiPath hit the action for " + path.toString());
-			// peel off a directory from the current target.
-			GeniiPath tempPath = new GeniiPath(parent._currentTarget);
-			String just_dir = tempPath.getParent();
-			parent._currentTarget = tempPath.pathType().toString() + ":" + just_dir;
-			if (_logger.isDebugEnabled())
-				_logger.debug("trimmed current target down to " + parent._currentTarget);
-			return PathOutcome.OUTCOME_SUCCESS;
+			GeniiPath targetFile = new GeniiPath(_targetPath);
+			// a file that an earlier run of this copy started is ours to finish.
+			if (!_force && targetFile.exists() && !createdEarlier(targetFile)) {
+				_logger.error("force is false, and the target file already exists at path: " + targetFile.toString());
+				return PathOutcome.OUTCOME_EXISTENT;
+			}
+			if (_updates != null) {
+				String partialDir = (new GeniiPath(_path.getParent())).getName();
+				synchronized (_updates) {
+					_updates.updateSubTitle(partialDir + "/" + _path.getName());
+				}
+			}
+			return copyOneFile(_path.toString(), targetFile.toString(), _logLocation, CopyMachine.this, _limiter);
 		}
 	}
 }
@@ -49,6 +49,7 @@ public class MkdirTool extends BaseGridTool
 	private boolean _parents = false;
 	private String _rnsService = null;
 	private String _specsPath = null;
+	private String _optimize = null;
 
 	public MkdirTool()
 	{
@@ -74,10 +75,18 @@ public class MkdirTool extends BaseGridTool
 		_specsPath = path;
 	}
 
+	@Option({ "optimize" })
+	public void set_optimize(String goal)
+	{
+		_optimize = goal;
+	}
+
 	@Override
 	protected int runCommand() throws ReloadShellException, ToolException, UserCancelException, RNSException, AuthZSecurityException,
 		IOException, ResourcePropertyException
 	{
+		// the QoS manager is shared, so always reset the goal of the last run
+		QosManagerTool.factory().set_optimize(_optimize);
 		return makeDirectory(_parents, _rnsService, _specsPath, getArguments(), stderr);
 	}
 
@@ -86,6 +95,8 @@ public class MkdirTool extends BaseGridTool
 	{
 		if (numArguments() < 1)
 			throw new InvalidToolUsageException();
+		if (_optimize != null && !_optimize.equals("cost"))
+			throw new InvalidToolUsageException("Unknown optimization goal: " + _optimize);
 	}
 
 	public static EndpointReferenceType lookupPath(String path) throws RNSPathDoesNotExistException, RNSException, FileNotFoundException
@@ -4,24 +4,51 @@
  */
 package edu.virginia.vcgr.genii.client.cmd.tools;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
 import java.rmi.RemoteException;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
-import java.sql.Statement;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
 import java.util.Set;
 import java.util.Stack;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.axis.message.MessageElement;
 import org.apache.axis.types.URI;
@@ -39,6 +66,7 @@ import org.ws.addressing.EndpointReferenceType;
 import edu.virginia.vcgr.genii.client.InstallationProperties;
 import edu.virginia.vcgr.genii.client.byteio.ByteIOConstants;
 import edu.virginia.vcgr.genii.client.cache.unified.CacheManager;
+import edu.virginia.vcgr.genii.client.cmd.InvalidToolUsageException;
 import edu.virginia.vcgr.genii.client.cmd.ReloadShellException;
 import edu.virginia.vcgr.genii.client.cmd.ToolException;
 import edu.virginia.vcgr.genii.client.comm.ClientUtils;
@@ -97,10 +125,47 @@ public class QosManagerTool extends BaseGridTool
 	private boolean _spec_template = false;
 	private String _status_template = null;
 	private boolean _test = false;
+	private boolean _bench = false;
+	private String _bench_output = null;
+	private String _optimize = null;
+	private String _schedule_batch = null;
+	private boolean _daemon = false;
+	private int _daemon_interval = 60; // seconds
+	private String _daemon_interval_arg = null;
+	private boolean _monitor_full = false;
+	private Set<String> _monitor_retry = new HashSet<String>(); // failed in the last pass
+	// circuit breakers of unreachable containers, see refresh_containers
+	static final private long HEALTH_BACKOFF_MS = 60 * 1000;
+	static final private long HEALTH_BACKOFF_MAX_MS = 6 * 60 * 60 * 1000;
+	private int _probe_ttl = 60; // seconds
+	private int _probe_negative_ttl = 10; // seconds
+	private String _probe_ttl_arg = null;
+	private String _probe_negative_ttl_arg = null;
+	private ProbeCache _probe_cache = new ProbeCache();
+	private int _max_migrations = 4;
+	private String _max_migrations_arg = null;
+	private List<Long> _migrations_in_flight = new ArrayList<Long>(); // estimated ends, ms
+	private Map<String, Long> _container_busy_until = new HashMap<String, Long>(); // ms
+	private int _clean_threads = 8;
+	private String _clean_threads_arg = null;
+	private int _monitor_threads = 8;
+	private int _monitor_timeout = 60; // seconds
+	private String _monitor_threads_arg = null;
+	private String _monitor_timeout_arg = null;
 
 	private String _gridHomeDir = null;
 	private String _localUserDir = null;
 	private String _qosDbName = "qos.db";
+	private QosDb _db = new QosDb();
+	private String _db_lease_owner = null;
+	private final Object _db_lease_lock = new Object(); // the lease is renewed from another thread
+
+	private int _min_replicas = 2; // a single container is not scheduled
+	static final private double COPY_STREAM_WBW = 10.0; // MB/s, assumed for one copy into a container
+
+	// shared by all scheduling passes, each pass splits its search over cores
+	static final private ForkJoinPool _schedule_pool =
+			new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 
 	public QosManagerTool()
 	{
@@ -157,12 +222,66 @@ public class QosManagerTool extends BaseGridTool
 		_monitor = true;
 	}
 
+	@Option({ "daemon" })
+	public void set_daemon()
+	{
+		_daemon = true;
+	}
+
+	@Option({ "daemon-interval" })
+	public void set_daemon_interval(String seconds)
+	{
+		_daemon_interval_arg = seconds;
+	}
+
+	@Option({ "monitor-full" })
+	public void set_monitor_full()
+	{
+		_monitor_full = true;
+	}
+
+	@Option({ "max-migrations" })
+	public void set_max_migrations(String migrations)
+	{
+		_max_migrations_arg = migrations;
+	}
+
+	@Option({ "monitor-threads" })
+	public void set_monitor_threads(String threads)
+	{
+		_monitor_threads_arg = threads;
+	}
+
+	@Option({ "monitor-timeout" })
+	public void set_monitor_timeout(String seconds)
+	{
+		_monitor_timeout_arg = seconds;
+	}
+
+	@Option({ "probe-ttl" })
+	public void set_probe_ttl(String seconds)
+	{
+		_probe_ttl_arg = seconds;
+	}
+
+	@Option({ "probe-negative-ttl" })
+	public void set_probe_negative_ttl(String seconds)
+	{
+		_probe_negative_ttl_arg = seconds;
+	}
+
 	@Option({ "clean-replicas" })
 	public void set_clean_replicas()
 	{
 		_clean_replicas = true;
 	}
 
+	@Option({ "clean-threads" })
+	public void set_clean_threads(String threads)
+	{
+		_clean_threads_arg = threads;
+	}
+
 	@Option({ "spec-template" })
 	public void set_spec_template()
 	{
@@ -175,24 +294,99 @@ public class QosManagerTool extends BaseGridTool
 		_status_template = rns_path;
 	}
 
+	@Option({ "schedule-batch" })
+	public void set_schedule_batch(String manifest_path)
+	{
+		_schedule_batch = manifest_path;
+	}
+
+	@Option({ "optimize" })
+	public void set_optimize(String mode)
+	{
+		_optimize = mode;
+	}
+
 	@Option({ "test" })
 	public void set_test()
 	{
 		_test = true;
 	}
 
+	@Option({ "bench" })
+	public void set_bench()
+	{
+		_bench = true;
+	}
+
+	@Option({ "bench-output" })
+	public void set_bench_output(String path)
+	{
+		_bench_output = path;
+	}
+
 	@Override
 	protected int runCommand() throws ReloadShellException, ToolException,
 		UserCancelException, RNSException, AuthZSecurityException,
 		IOException, ResourcePropertyException
 	{
-		qos_manager(getArgument(0));
+		try {
+			qos_manager(getArgument(0));
+		} finally {
+			_db.close();
+		}
 		return 0;
 	}
 
 	@Override
 	protected void verify() throws ToolException
 	{
+		if (_optimize != null && !_optimize.equals("cost"))
+			throw new InvalidToolUsageException("Unknown optimization goal: " + _optimize);
+		if (_daemon_interval_arg != null)
+			_daemon_interval = parse_positive_option("daemon-interval", _daemon_interval_arg);
+		if (_probe_ttl_arg != null)
+			_probe_ttl = parse_positive_option("probe-ttl", _probe_ttl_arg);
+		if (_probe_negative_ttl_arg != null)
+			_probe_negative_ttl = parse_positive_option("probe-negative-ttl", _probe_negative_ttl_arg);
+		if (_max_migrations_arg != null)
+			_max_migrations = parse_positive_option("max-migrations", _max_migrations_arg);
+		if (_clean_threads_arg != null)
+			_clean_threads = parse_positive_option("clean-threads", _clean_threads_arg);
+		if (_monitor_threads_arg != null)
+			_monitor_threads = parse_positive_option("monitor-threads", _monitor_threads_arg);
+		if (_monitor_timeout_arg != null)
+			_monitor_timeout = parse_positive_option("monitor-timeout", _monitor_timeout_arg);
+	}
+
+	/**
+	 * Names of the columns whose values differ between two rows.
+	 * @param columns
+	 * @param a
+	 * @param b
+	 * @param skip a column not to compare, or null
+	 * @return
+	 */
+	static private List<String> diff_columns(String[] columns, Object[] a, Object[] b, String skip)
+	{
+		List<String> changed = new ArrayList<String>();
+		for (int i = 0; i < columns.length; i++) {
+			if (columns[i].equals(skip)) continue;
+			if (a[i] == null ? b[i] != null : !a[i].equals(b[i])) {
+				changed.add(columns[i]);
+			}
+		}
+		return changed;
+	}
+
+	static private int parse_positive_option(String name, String value) throws InvalidToolUsageException
+	{
+		try {
+			int n = Integer.parseInt(value);
+			if (n > 0) return n;
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new InvalidToolUsageException("--" + name + " should be a positive integer: " + value);
 	}
 
 	/**************************************************************************
@@ -355,6 +549,34 @@ public class QosManagerTool extends BaseGridTool
 					+ this.SpecPath + "'";
 			return spec_sql_str;
 		}
+
+		// Placeholders and arguments for a prepared INSERT, same columns as to_sql_string
+		public String to_sql_params() {
+			return "?,?,?,?,?,?,?,?,?,?";
+		}
+
+		public Object[] to_sql_args() {
+			return new Object[] { this.SpecId,
+					this.Availability, this.Reliability,
+					this.ReservedSize, this.UsedSize,
+					this.DataIntegrity, this.Bandwidth,
+					this.Latency, this.PhysicalLocations,
+					this.SpecPath };
+		}
+
+		// Column names of to_sql_args
+		public String[] sql_columns() {
+			return new String[] { "SpecId", "Availability", "Reliability",
+					"ReservedSize", "UsedSize", "DataIntegrity", "Bandwidth",
+					"Latency", "PhysicalLocations", "SpecPath" };
+		}
+
+		/**
+		 * Names of the fields that differ from another spec.
+		 */
+		public List<String> diff(QosSpec other) {
+			return diff_columns(sql_columns(), this.to_sql_args(), other.to_sql_args(), null);
+		}
 	}
 
 	/**************************************************************************
@@ -595,6 +817,68 @@ public class QosManagerTool extends BaseGridTool
 					+ "'" + this.RnsPath + "','" + this.StatusPath + "'";
 			return status_sql_str;
 		}
+
+		// Placeholders and arguments for a prepared INSERT, same columns as to_sql_string
+		public String to_sql_params() {
+			return "?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?";
+		}
+
+		public Object[] to_sql_args() {
+			return new Object[] { this.ContainerId,
+					this.StorageTotal, this.PathToSwitch,
+					this.CoresAvailable, this.StorageRBW,
+					this.StorageWBW, this.StorageRLatency,
+					this.StorageWLatency, this.StorageRAIDLevel,
+					this.CostPerGBMonth, this.DataIntegrity,
+					this.StorageReserved, this.StorageUsed,
+					this.StorageReliability, this.ContainerAvailability,
+					this.StorageRBW_dyn, this.StorageWBW_dyn,
+					this.PhysicalLocation,
+					this.RnsPath, this.StatusPath };
+		}
+
+		// Column names of to_sql_args
+		public String[] sql_columns() {
+			return new String[] { "ContainerId", "StorageTotal", "PathToSwitch",
+					"CoresAvailable", "StorageRBW", "StorageWBW", "StorageRLatency",
+					"StorageWLatency", "StorageRAIDLevel", "CostPerGBMonth", "DataIntegrity",
+					"StorageReserved", "StorageUsed", "StorageReliability", "ContainerAvailability",
+					"StorageRBW_dyn", "StorageWBW_dyn", "PhysicalLocation", "RnsPath", "StatusPath" };
+		}
+
+		/**
+		 * Names of the fields that differ from another status. StorageReserved
+		 * is kept by the DB and not reported by containers, so it is skipped.
+		 */
+		public List<String> diff(ContainerStatus other) {
+			return diff_columns(sql_columns(), this.to_sql_args(), other.to_sql_args(), "StorageReserved");
+		}
+
+		// Assignments and arguments for a prepared UPDATE of what the container
+		// reports. StorageReserved is left out, it only changes by increments.
+		public String to_sql_update() {
+			return "StorageTotal = ?, PathToSwitch = ?, CoresAvailable = ?, StorageRBW = ?,"
+					+ " StorageWBW = ?, StorageRLatency = ?, StorageWLatency = ?, StorageRAIDLevel = ?,"
+					+ " CostPerGBMonth = ?, DataIntegrity = ?, StorageUsed = ?, StorageReliability = ?,"
+					+ " ContainerAvailability = ?, StorageRBW_dyn = ?, StorageWBW_dyn = ?,"
+					+ " PhysicalLocation = ?, RnsPath = ?, StatusPath = ?";
+		}
+
+		// The arguments of to_sql_update, then the ContainerId for the WHERE clause
+		public Object[] to_sql_update_args() {
+			return new Object[] {
+					this.StorageTotal, this.PathToSwitch,
+					this.CoresAvailable, this.StorageRBW,
+					this.StorageWBW, this.StorageRLatency,
+					this.StorageWLatency, this.StorageRAIDLevel,
+					this.CostPerGBMonth, this.DataIntegrity,
+					this.StorageUsed,
+					this.StorageReliability, this.ContainerAvailability,
+					this.StorageRBW_dyn, this.StorageWBW_dyn,
+					this.PhysicalLocation,
+					this.RnsPath, this.StatusPath,
+					this.ContainerId };
+		}
 	}
 
 	/**************************************************************************
@@ -636,6 +920,8 @@ public class QosManagerTool extends BaseGridTool
 						} else {
 							succ = db_update_container(status, false); // update
 						}
+						// the container was checked just now, probe it normally again
+						succ = succ && db_update_health(Collections.<String, long[]>singletonMap(status.ContainerId, null));
 						succ = succ && db_sync_up();
 					}
 				} else {
@@ -660,6 +946,10 @@ public class QosManagerTool extends BaseGridTool
 					succ = succ && db_sync_up();
 				}
 			}
+		} else if (_schedule_batch != null) {
+			System.out.println("(qm) main: Schedule a batch of directories from "
+					+ _schedule_batch);
+			succ = schedule_batch(_schedule_batch);
 		} else if (_show_db) {
 			System.out.println("(qm) main: Show information of the QoS database.");
 			succ = db_sync_down();
@@ -685,6 +975,10 @@ public class QosManagerTool extends BaseGridTool
 				succ = succ && db_init();
 				succ = succ && db_sync_up();
 			}
+		} else if (_daemon) {
+			System.out.println("(qm) main: Monitor container status and specs every "
+					+ _daemon_interval + " seconds.");
+			succ = monitor_daemon();
 		} else if (_monitor) {
 			System.out.println("(qm) main: Monitor container status and specs.");
 			succ = db_sync_down();
@@ -693,8 +987,11 @@ public class QosManagerTool extends BaseGridTool
 		} else if (_clean_replicas) {
 			System.out.println("(qm) main: Cleaning all unused replicas.");
 			succ = db_sync_down();
-			succ = succ && clean_replicas();
-			succ = succ && db_sync_up();
+			if (succ) {
+				// destroyed replicas are recorded even if some others failed
+				succ = clean_replicas();
+				succ = db_sync_up() && succ;
+			}
 		} else if (_spec_template) {
 			QosSpec spec = new QosSpec();
 			System.out.println(spec.to_string());
@@ -707,6 +1004,10 @@ public class QosManagerTool extends BaseGridTool
 			System.out.println("(qm) internal: Test the QoS manager.");
 			// Should not sync up or down.
 			test_db();
+		} else if (_bench) { // internal
+			System.out.println("(qm) internal: Benchmark the QoS scheduler.");
+			// Should not sync up or down.
+			bench_suite(_bench_output);
 		} else {
 			System.out.println("(qm) main: Please run 'man qos-manager' for usable options.");
 		}
@@ -716,6 +1017,237 @@ public class QosManagerTool extends BaseGridTool
 	 *  QoS Database Interfaces
 	 **************************************************************************/
 
+	/**
+	 * QoS DB: The connection to the local qos.db. It is opened on first use
+	 * and kept for the rest of the tool invocation, and each SQL shape is
+	 * prepared once and reused with new arguments. It must be closed whenever
+	 * the local file is copied, replaced or removed, as db_sync_down and
+	 * db_sync_up do. While the journal is on, every update is also recorded
+	 * in the ChangeLog table, which db_sync_up ships to the grid.
+	 */
+	private class QosDb
+	{
+		private boolean driver_loaded = false;
+		private Connection conn = null;
+		private Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+		private int depth = 0; // nested begin() calls
+		private boolean rollback_only = false; // a nested level rolled back
+		private String path = null; // null for the local qos.db
+		private boolean journal = false;
+
+		public QosDb() {
+		}
+
+		public QosDb(String path) {
+			this.path = path;
+		}
+
+		private Connection connect() throws ClassNotFoundException, SQLException {
+			if (conn == null) {
+				if (!driver_loaded) {
+					Class.forName("org.sqlite.JDBC");
+					driver_loaded = true;
+				}
+				conn = DriverManager.getConnection("jdbc:sqlite:" + (path != null ? path : db_get_local_path()));
+			}
+			return conn;
+		}
+
+		/**
+		 * Get the cached statement of a SQL shape with the arguments bound.
+		 * @param sql with a ? for each argument
+		 * @param args
+		 * @return
+		 */
+		public PreparedStatement prepare(String sql, Object... args)
+				throws ClassNotFoundException, SQLException
+		{
+			PreparedStatement ps = statements.get(sql);
+			if (ps == null) {
+				ps = connect().prepareStatement(sql);
+				statements.put(sql, ps);
+			}
+			ps.clearParameters();
+			for (int i = 0; i < args.length; i++) {
+				ps.setObject(i + 1, args[i]);
+			}
+			return ps;
+		}
+
+		/**
+		 * Run a query. The result set should be closed before the same SQL
+		 * shape is run again, as they share one statement.
+		 */
+		public ResultSet query(String sql, Object... args)
+				throws ClassNotFoundException, SQLException
+		{
+			return prepare(sql, args).executeQuery();
+		}
+
+		/**
+		 * Run a change. It is recorded in the ChangeLog in the same
+		 * transaction while the journal is on.
+		 */
+		public int update(String sql, Object... args)
+				throws ClassNotFoundException, SQLException
+		{
+			if (!journal) return prepare(sql, args).executeUpdate();
+			boolean outermost = (depth == 0);
+			begin();
+			try {
+				int count = prepare(sql, args).executeUpdate();
+				prepare("INSERT INTO ChangeLog(Entry) VALUES (?);", db_log_encode(sql, args)).executeUpdate();
+				commit();
+				return count;
+			} catch (SQLException e) {
+				// an enclosing transaction is rolled back by its owner
+				if (outermost) rollback(); else depth--;
+				throw e;
+			}
+		}
+
+		/**
+		 * Run a change that is never recorded in the ChangeLog: sync state,
+		 * schema migrations and changes replayed from the grid.
+		 */
+		public int update_unlogged(String sql, Object... args)
+				throws ClassNotFoundException, SQLException
+		{
+			return prepare(sql, args).executeUpdate();
+		}
+
+		public void set_journal(boolean on) {
+			journal = on;
+		}
+
+		/**
+		 * The first column of all rows. The rows are read out first, so the
+		 * caller may run other queries while walking the list.
+		 */
+		public List<String> query_strings(String sql, Object... args)
+				throws ClassNotFoundException, SQLException
+		{
+			List<String> results = new ArrayList<String>();
+			ResultSet rs = query(sql, args);
+			while (rs.next()) {
+				results.add(rs.getString(1));
+			}
+			rs.close();
+			return results;
+		}
+
+		public List<Integer> query_ints(String sql, Object... args)
+				throws ClassNotFoundException, SQLException
+		{
+			List<Integer> results = new ArrayList<Integer>();
+			ResultSet rs = query(sql, args);
+			while (rs.next()) {
+				results.add(rs.getInt(1));
+			}
+			rs.close();
+			return results;
+		}
+
+		/**
+		 * The first column of the first row. Throws if there is no row.
+		 */
+		public int query_int(String sql, Object... args)
+				throws ClassNotFoundException, SQLException
+		{
+			ResultSet rs = query(sql, args);
+			try {
+				if (!rs.next()) throw new SQLException("No result for: " + sql);
+				return rs.getInt(1);
+			} finally {
+				rs.close();
+			}
+		}
+
+		public boolean exists(String sql, Object... args)
+				throws ClassNotFoundException, SQLException
+		{
+			ResultSet rs = query(sql, args);
+			boolean found = rs.next();
+			rs.close();
+			return found;
+		}
+
+		/**
+		 * Start a transaction. Nested calls join the outermost transaction.
+		 */
+		public void begin() throws ClassNotFoundException, SQLException {
+			if (depth == 0) {
+				connect().setAutoCommit(false);
+				rollback_only = false;
+			}
+			depth++;
+		}
+
+		/**
+		 * Commit at the outermost level. If a nested level rolled back, the
+		 * whole transaction is rolled back instead and this throws.
+		 */
+		public void commit() throws SQLException {
+			if (depth > 0 && --depth == 0) {
+				if (rollback_only) {
+					abort();
+					throw new SQLException("The transaction was rolled back by a nested failure.");
+				}
+				conn.commit();
+				conn.setAutoCommit(true);
+			}
+		}
+
+		/**
+		 * Roll back the transaction. A nested level only marks it, so the
+		 * outermost level rolls back everything and its writes after the
+		 * failure are not committed one by one.
+		 */
+		public void rollback() {
+			if (depth == 0) return;
+			if (depth > 1) {
+				depth--;
+				rollback_only = true;
+				return;
+			}
+			abort();
+		}
+
+		/**
+		 * Roll back the open transaction at once.
+		 */
+		private void abort() {
+			depth = 0;
+			rollback_only = false;
+			try {
+				conn.rollback();
+				conn.setAutoCommit(true);
+			} catch (SQLException e) {
+				System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			}
+		}
+
+		public void close() {
+			if (depth > 0) abort();
+			for (PreparedStatement ps: statements.values()) {
+				try {
+					ps.close();
+				} catch (SQLException e) {
+					System.out.println(e.getClass().getName() + ": " + e.getMessage());
+				}
+			}
+			statements.clear();
+			if (conn != null) {
+				try {
+					conn.close();
+				} catch (SQLException e) {
+					System.out.println(e.getClass().getName() + ": " + e.getMessage());
+				}
+				conn = null;
+			}
+		}
+	}
+
 	/**
 	 * QoS DB: Get the path of the qos.db file in grid home directory.
 	 * @return
@@ -747,110 +1279,993 @@ public class QosManagerTool extends BaseGridTool
 		return this._localUserDir + "/" + this._qosDbName;
 	}
 
+	// The grid keeps qos.db as a base snapshot and the changes made since in
+	// log segments under qos.db.log/, one file per db_sync_up named
+	// <DbId>.<LogSeq>. SyncState.DbId names the lineage (a new one on every
+	// --init-db) and SyncState.LogSeq is the last segment that is included.
+	// qos.db.version holds the DbId and LogSeq of the newest segment, so an
+	// up-to-date client finds out with one small read. It is removed before
+	// a segment is appended and written again after, so it is never older
+	// than the log. Writers hold the lease qos.db.lock while they append.
+	// qos.db is written once per lineage and never overwritten; compaction
+	// publishes newer bases in the log as <DbId>.<LogSeq>.base.
+	static final private String DB_LOG_SUFFIX = ".log";
+	static final private String DB_PART_SUFFIX = ".part";
+	static final private String DB_BASE_SUFFIX = ".base";
+	static final private String DB_LOG_HEADER = "qos.db log ";
+	static final private String DB_LOG_TRAILER = "end ";
+	static final private String DB_VERSION_SUFFIX = ".version";
+	static final private String DB_LEASE_SUFFIX = ".lock";
+	static final private long DB_LEASE_MS = 60 * 1000; // a lease older than this may be broken
+	static final private long DB_LEASE_WAIT_MS = 5 * 60 * 1000;
+	static final private int DB_SYNC_RETRIES = 3;
+	// Every DB_LOG_COMPACT segments the base is rewritten and older segments
+	// are removed, so a new client does not replay the whole history.
+	static final private int DB_LOG_COMPACT = 32;
+
 	/**
-	 * QoS DB: Synchronize the qos.db in grid home directory to local.
+	 * QoS DB: Get the path of the log directory in grid home directory.
 	 * @return
 	 */
-	private boolean db_sync_down() {
+	private String db_log_get_path() {
 		String db_grid_path = db_get_grid_path();
-		String db_local_path = db_get_local_path();
-		if (db_grid_path == null || db_local_path == null) {
-			return false;
-		}
-		GeniiPath dbFile = new GeniiPath(db_grid_path);
-		if (!dbFile.exists()) {
-			System.out.println("(qm) db: Please run 'qos-manager --init-db' to initialize the QoS database.");
-			return false;
+		return db_grid_path == null ? null : db_grid_path + DB_LOG_SUFFIX;
+	}
+
+	private String db_log_name(String db_id, int seq) {
+		return db_id + "." + String.format("%010d", seq);
+	}
+
+	/**
+	 * QoS DB: Names of all segments in the grid log directory.
+	 * @return names, empty if the directory does not exist yet, or null on error
+	 */
+	private List<String> db_log_list() {
+		List<String> names = new ArrayList<String>();
+		String log_path = db_log_get_path();
+		if (log_path == null) return null;
+		try {
+			RNSPath log_dir = RNSPath.getCurrent().lookup(log_path, RNSPathQueryFlags.DONT_CARE);
+			if (!log_dir.exists()) return names;
+			for (RNSPath entry: log_dir.listContents()) {
+				if (!entry.getName().endsWith(DB_PART_SUFFIX)) {
+					names.add(entry.getName());
+				}
+			}
+		} catch (RNSException e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			return null;
 		}
-		System.out.println("(qm) db: Sync from grid to local.");
-		PathOutcome po = CopyTool.copy("grid:" + db_grid_path,
-				"local:" + db_local_path, false, true, null, stderr);
-		if (PathOutcome.OUTCOME_SUCCESS.differs(po)) {
-			System.out.println(po.toString());
-			return false;
-		} else {
-			return true;
+		return names;
+	}
+
+	/**
+	 * QoS DB: Sequence numbers of the segments of one lineage.
+	 * @param names from db_log_list
+	 * @param db_id
+	 * @return sorted sequence numbers
+	 */
+	private List<Integer> db_log_seqs(List<String> names, String db_id) {
+		List<Integer> seqs = new ArrayList<Integer>();
+		for (String name: names) {
+			if (name.startsWith(db_id + ".") && !name.endsWith(DB_BASE_SUFFIX)) {
+				try {
+					seqs.add(Integer.parseInt(name.substring(db_id.length() + 1)));
+				} catch (NumberFormatException e) {
+					System.out.println("(qm) db: Warning: Skip unknown log file " + name);
+				}
+			}
 		}
+		Collections.sort(seqs);
+		return seqs;
 	}
 
 	/**
-	 * QoS DB: Synchronize the local qos.db to grid home directory.
-	 * @return
+	 * QoS DB: The newest base published by compaction.
+	 * @param names from db_log_list
+	 * @param db_id the lineage, or null for any
+	 * @return its name, or null if there is none
 	 */
-	private boolean db_sync_up() {
-		String db_grid_path = db_get_grid_path();
-		String db_local_path = db_get_local_path();
-		if (db_grid_path == null || db_local_path == null) {
-			return false;
+	private String db_log_base(List<String> names, String db_id) {
+		String base = null;
+		for (String name: names) {
+			if (name.endsWith(DB_BASE_SUFFIX) && (db_id == null || name.startsWith(db_id + "."))
+					&& (base == null || name.compareTo(base) > 0)) {
+				base = name;
+			}
 		}
-		File dbFile = new File(db_local_path);
-		if (!dbFile.exists()) {
-			System.out.println("(qm) db: Error: Cannot find local:" + db_local_path);
-			return false;
+		return base;
+	}
+
+	/**
+	 * QoS DB: The segments after seq, if they are all there.
+	 * @param seqs sorted sequence numbers of one lineage
+	 * @param seq the last segment that is already applied
+	 * @return the segments to apply in order, or null if some are missing
+	 */
+	private List<Integer> db_log_pending(List<Integer> seqs, int seq) {
+		List<Integer> pending = new ArrayList<Integer>();
+		for (int s: seqs) {
+			if (s > seq) {
+				if (s != seq + pending.size() + 1) return null;
+				pending.add(s);
+			}
 		}
-		System.out.println("(qm) db: Sync from local to grid.");
-		PathOutcome po = CopyTool.copy("local:" + db_local_path,
-				"grid:" + db_grid_path, false, true, null, stderr);
-		if (PathOutcome.OUTCOME_SUCCESS.differs(po)) {
-			System.out.println(po.toString());
-			return false;
-		} else {
-			return true;
+		return pending;
+	}
+
+	/**
+	 * QoS DB: One SQL change with its arguments as a line of text. Tabs
+	 * separate the fields, each argument is tagged with its type.
+	 */
+	private String db_log_encode(String sql, Object[] args) {
+		StringBuilder entry = new StringBuilder(db_log_escape(sql));
+		for (Object arg: args) {
+			entry.append('\t');
+			if (arg == null) {
+				entry.append('n');
+			} else if (arg instanceof Integer) {
+				entry.append('i').append(arg);
+			} else if (arg instanceof Long) {
+				entry.append('l').append(arg);
+			} else if (arg instanceof Double) {
+				entry.append('d').append(arg);
+			} else {
+				entry.append('s').append(db_log_escape(arg.toString()));
+			}
 		}
+		return entry.toString();
 	}
 
 	/**
-	 * QoS DB: Destroy the local qos.db file.
-	 * @return
+	 * QoS DB: Replay one line of db_log_encode.
+	 * @param entry
+	 * @param logged record it in the ChangeLog again, as a rebase does
 	 */
-	private boolean db_destroy() {
-		String db_grid_path = db_get_grid_path();
-		String db_local_path = db_get_local_path();
-		if (db_grid_path == null || db_local_path == null) {
-			return false;
+	private void db_log_replay(String entry, boolean logged) throws ClassNotFoundException, SQLException {
+		String[] fields = entry.split("\t", -1);
+		Object[] args = new Object[fields.length - 1];
+		for (int i = 1; i < fields.length; i++) {
+			String value = fields[i].substring(1);
+			switch (fields[i].charAt(0)) {
+			case 'n': args[i - 1] = null; break;
+			case 'i': args[i - 1] = Integer.valueOf(value); break;
+			case 'l': args[i - 1] = Long.valueOf(value); break;
+			case 'd': args[i - 1] = Double.valueOf(value); break;
+			case 's': args[i - 1] = db_log_unescape(value); break;
+			default: throw new SQLException("Bad log entry: " + entry);
+			}
 		}
-		GeniiPath dbFileGrid = new GeniiPath(db_grid_path);
-		// The qos.db file in grid home directory should be removed by hand
-		assert(dbFileGrid.exists() == false);
+		if (logged) {
+			_db.update(db_log_unescape(fields[0]), args);
+		} else {
+			_db.update_unlogged(db_log_unescape(fields[0]), args);
+		}
+	}
 
-		File dbFileLocal = new File(db_local_path);
-		if (dbFileLocal.exists()) {
-			dbFileLocal.delete();
+	private String db_log_escape(String str) {
+		return str.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	private String db_log_unescape(String str) {
+		StringBuilder out = new StringBuilder(str.length());
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c == '\\' && i + 1 < str.length()) {
+				c = str.charAt(++i);
+				if (c == 't') c = '\t';
+				else if (c == 'n') c = '\n';
+				else if (c == 'r') c = '\r';
+			}
+			out.append(c);
 		}
-		return true;
+		return out.toString();
 	}
 
 	/**
-	 * QoS DB: Initialize the DB. If the qos.db file already exists in user
-	 * home directory, this file should be removed manually.
-	 * @return
+	 * QoS DB: A value of the SyncState table.
 	 */
-	private boolean db_init() {
-		Connection conn = null;
-		Statement stmt = null;
-		try {
-			Class.forName("org.sqlite.JDBC");
-			conn = DriverManager.getConnection("jdbc:sqlite:" + db_get_local_path());
-			System.out.println("(qm) db: Connect to QoS DB successfully.");
-			stmt = conn.createStatement();
+	private String db_get_sync_state(String key) throws ClassNotFoundException, SQLException {
+		List<String> values = _db.query_strings("SELECT Value FROM SyncState WHERE Key = ?;", key);
+		return values.isEmpty() ? null : values.get(0);
+	}
 
-			QosSpec spec = new QosSpec();
-			String create_spec_table = "CREATE TABLE" + spec.get_sql_header();
-			ContainerStatus status = new ContainerStatus();
-			String create_status_table = "CREATE TABLE" + status.get_sql_header();
+	private void db_set_sync_state(String key, String value) throws ClassNotFoundException, SQLException {
+		_db.update_unlogged("INSERT OR REPLACE INTO SyncState VALUES (?, ?);", key, value);
+	}
 
-			stmt.executeUpdate(create_spec_table);
-			stmt.executeUpdate(create_status_table);
+	/**
+	 * QoS DB: Create a small file in the grid. It is written under a
+	 * temporary name of its own and then linked in place, so the file is
+	 * either complete or not there, and the link fails if the name is taken.
+	 * Clients racing for the same name never share the temporary file.
+	 * @param path grid path
+	 * @param content
+	 * @return false if the file exists or cannot be written
+	 */
+	private boolean db_grid_create(String path, String content) {
+		RNSPath part = db_grid_write_part(path, content);
+		return part != null && db_grid_link_part(part, path);
+	}
+
+	/**
+	 * QoS DB: Write a small file in the grid under a temporary name of its
+	 * own next to path, to be linked in place by db_grid_link_part.
+	 * @param path grid path
+	 * @param content
+	 * @return the temporary file, or null if it cannot be written
+	 */
+	private RNSPath db_grid_write_part(String path, String content) {
+		RNSPath part = null;
+		OutputStream out = null;
+		try {
+			part = RNSPath.getCurrent().lookup(path + "." + UUID.randomUUID() + DB_PART_SUFFIX,
+					RNSPathQueryFlags.MUST_NOT_EXIST);
+			out = new GeniiPath("grid:" + part.pwd()).openOutputStream();
+			out.write(content.getBytes("UTF-8"));
+			out.close();
+			out = null;
+			return part;
+		} catch (Exception e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			StreamUtils.close(out);
+			db_grid_drop_part(part);
+			return null;
+		}
+	}
+
+	/**
+	 * QoS DB: Link a temporary file in place at path and drop its temporary
+	 * name. The link fails if the name is taken, and the temporary file is
+	 * then removed.
+	 * @param part from db_grid_write_part
+	 * @param path grid path
+	 * @return false if path exists or the file cannot be linked
+	 */
+	private boolean db_grid_link_part(RNSPath part, String path) {
+		try {
+			RNSPath target = RNSPath.getCurrent().lookup(path, RNSPathQueryFlags.MUST_NOT_EXIST);
+			target.link(part.getEndpoint());
+		} catch (Exception e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			db_grid_drop_part(part);
+			return false;
+		}
+		try {
+			part.unlink();
+		} catch (Exception e) {
+			// the file is in place, only its temporary name is left over
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			System.out.println("(qm) db: Warning: Cannot remove grid:" + part.pwd());
+		}
+		return true;
+	}
+
+	private void db_grid_drop_part(RNSPath part) {
+		if (part != null && part.exists()) {
+			try {
+				part.delete();
+			} catch (RNSException e) {
+				System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * QoS DB: Read a small file in the grid.
+	 * @param path grid path
+	 * @return the content, or null if it does not exist or cannot be read
+	 */
+	private String db_grid_read(String path) {
+		char[] data = new char[ByteIOConstants.PREFERRED_SIMPLE_XFER_BLOCK_SIZE];
+		int read;
+		InputStream in = null;
+		InputStreamReader reader = null;
+		StringBuilder content = new StringBuilder();
+
+		try {
+			GeniiPath file = new GeniiPath("grid:" + path);
+			if (!file.exists()) return null;
+			in = file.openInputStream();
+			reader = new InputStreamReader(in, "UTF-8");
+			while ((read = reader.read(data, 0, data.length)) > 0) {
+				content.append(data, 0, read);
+			}
+		} catch (IOException e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			return null;
+		} finally {
+			StreamUtils.close(reader);
+			StreamUtils.close(in);
+		}
+		return content.toString();
+	}
+
+	/**
+	 * QoS DB: Write a segment to the grid log. Writing a sequence number
+	 * that is already taken fails, so two clients never both append the
+	 * same segment.
+	 * @param db_id
+	 * @param seq
+	 * @param entries lines of db_log_encode
+	 * @return
+	 */
+	private boolean db_log_write(String db_id, int seq, List<String> entries) {
+		if (!db_lease_renew()) return false;
+		String log_path = db_log_get_path();
+		String name = db_log_name(db_id, seq);
+		try {
+			RNSPath log_dir = RNSPath.getCurrent().lookup(log_path, RNSPathQueryFlags.DONT_CARE);
+			if (!log_dir.exists()) log_dir.mkdir();
+		} catch (RNSException e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			return false;
+		}
+		StringBuilder segment = new StringBuilder(DB_LOG_HEADER + name + "\n");
+		for (String entry: entries) {
+			segment.append(entry).append('\n');
+		}
+		segment.append(DB_LOG_TRAILER).append(entries.size()).append('\n');
+		if (!db_grid_create(log_path + "/" + name, segment.toString())) {
+			System.out.println("(qm) db: Error: Cannot write log segment " + name);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * QoS DB: Apply a segment of the grid log to the local qos.db in one
+	 * transaction, and advance LogSeq.
+	 * @param db_id
+	 * @param seq
+	 * @return
+	 */
+	private boolean db_log_apply(String db_id, int seq) {
+		String name = db_log_name(db_id, seq);
+		String segment = db_grid_read(db_log_get_path() + "/" + name);
+		if (segment == null) {
+			System.out.println("(qm) db: Error: Cannot read log segment " + name);
+			return false;
+		}
+		String[] lines = segment.split("\n");
+		if (lines.length < 2 || !lines[0].equals(DB_LOG_HEADER + name)
+				|| !lines[lines.length - 1].equals(DB_LOG_TRAILER + (lines.length - 2))) {
+			System.out.println("(qm) db: Error: Log segment " + name + " is damaged.");
+			return false;
+		}
+		try {
+			_db.begin();
+			for (int i = 1; i < lines.length - 1; i++) {
+				db_log_replay(lines[i], false);
+			}
+			db_set_sync_state("LogSeq", Integer.toString(seq));
+			_db.commit();
+		} catch (Exception e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			_db.rollback();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * QoS DB: Upload the local qos.db as the new base snapshot, and remove
+	 * the segments it includes, except the last one which tells other
+	 * clients where the lineage is, and the older bases. The base of a new
+	 * lineage is qos.db, later ones are <DbId>.<LogSeq>.base in the log.
+	 * Either is written under a temporary name and linked in place, so a
+	 * base is complete or not there; nothing is removed before it is.
+	 * @param db_id
+	 * @param seq the last segment included in the base
+	 * @param names from db_log_list
+	 * @return
+	 */
+	private boolean db_log_publish_base(String db_id, int seq, List<String> names) {
+		if (!db_lease_renew()) return false;
+		String base_path = seq == 0 ? db_get_grid_path()
+				: db_log_get_path() + "/" + db_log_name(db_id, seq) + DB_BASE_SUFFIX;
+		RNSPath part;
+		try {
+			part = RNSPath.getCurrent().lookup(base_path + "." + UUID.randomUUID() + DB_PART_SUFFIX,
+					RNSPathQueryFlags.MUST_NOT_EXIST);
+		} catch (RNSException e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			return false;
+		}
+		// make sure everything is on disk before the file is copied
+		_db.close();
+		System.out.println("(qm) db: Sync the whole QoS database from local to grid.");
+		PathOutcome po = CopyTool.copy("local:" + db_get_local_path(),
+				"grid:" + part.pwd(), false, true, null, stderr);
+		if (PathOutcome.OUTCOME_SUCCESS.differs(po)) {
+			System.out.println(po.toString());
+			db_grid_drop_part(part);
+			return false;
+		}
+		// the base is only published and the log trimmed by the holder of the lease
+		if (!db_lease_renew()) {
+			db_grid_drop_part(part);
+			return false;
+		}
+		if (!db_grid_link_part(part, base_path)) {
+			System.out.println("(qm) db: Error: Cannot publish grid:" + base_path);
+			return false;
+		}
+		String keep = db_log_name(db_id, seq);
+		for (String name: names) {
+			if (name.equals(keep)) continue;
+			try {
+				RNSPath.getCurrent().lookup(db_log_get_path() + "/" + name, RNSPathQueryFlags.MUST_EXIST).delete();
+			} catch (RNSException e) {
+				// a leftover segment is skipped by the sequence checks
+				System.out.println("(qm) db: Warning: Cannot remove old log file " + name);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * QoS DB: The DbId and LogSeq of the local qos.db, if it can be brought
+	 * up to date from the grid log: it exists, has the sync state, and has
+	 * no changes that were not synchronized.
+	 * @return { DbId, LogSeq }, or null
+	 */
+	private String[] db_get_local_version() {
+		if (!new File(db_get_local_path()).exists()) return null;
+		try {
+			if (_db.query_int("PRAGMA user_version;") < DB_MIGRATIONS.length) return null;
+			if (_db.exists("SELECT Seq FROM ChangeLog;")) {
+				System.out.println("(qm) db: Warning: Discard local changes that were not synchronized.");
+				return null;
+			}
+			String[] version = { db_get_sync_state("DbId"), db_get_sync_state("LogSeq") };
+			if (version[0] == null || version[1] == null || version[1].startsWith("-")) return null;
+			return version;
+		} catch (Exception e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * QoS DB: Read the version file next to qos.db in grid home directory,
+	 * one line with the DbId and LogSeq of the newest segment. It is only a
+	 * shortcut for db_sync_down, which lists the log when it is missing.
+	 * @return { DbId, LogSeq }, or null
+	 */
+	private String[] db_version_read() {
+		String version = db_grid_read(db_get_grid_path() + DB_VERSION_SUFFIX);
+		if (version == null) return null;
+		String[] fields = version.trim().split(" ");
+		return fields.length == 2 ? fields : null;
+	}
+
+	/**
+	 * QoS DB: Remove the version file before a segment is appended, so that
+	 * no client takes it for the newest version while it is not.
+	 * @return false if it is still there
+	 */
+	private boolean db_version_clear() {
+		try {
+			RNSPath version = RNSPath.getCurrent().lookup(db_get_grid_path() + DB_VERSION_SUFFIX, RNSPathQueryFlags.DONT_CARE);
+			if (version.exists()) version.delete();
+			return true;
+		} catch (RNSException e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			System.out.println("(qm) db: Error: Cannot remove the QoS database version.");
+			return false;
+		}
+	}
+
+	/**
+	 * QoS DB: Write the version file after a segment is appended. It was
+	 * removed before the append, so a failure leaves no version file and
+	 * only costs other clients a listing of the log.
+	 * @param db_id
+	 * @param seq
+	 */
+	private void db_version_write(String db_id, int seq) {
+		if (!db_lease_renew()) return;
+		OutputStream out = null;
+		try {
+			out = new GeniiPath("grid:" + db_get_grid_path() + DB_VERSION_SUFFIX).openOutputStream();
+			out.write((db_id + " " + seq + "\n").getBytes("UTF-8"));
+		} catch (IOException e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			System.out.println("(qm) db: Warning: Cannot update the QoS database version.");
+		} finally {
+			StreamUtils.close(out);
+		}
+	}
+
+	/**
+	 * QoS DB: Synchronize the qos.db in grid home directory to local. A
+	 * clean local copy of the same lineage only replays the log segments it
+	 * has not seen; otherwise the base is copied and the log replayed on it.
+	 * @return
+	 */
+	private boolean db_sync_down() {
+		String db_grid_path = db_get_grid_path();
+		String db_local_path = db_get_local_path();
+		if (db_grid_path == null || db_local_path == null) {
+			return false;
+		}
+		_db.set_journal(false);
+
+		// Nothing to fetch if the local copy is at the version of the grid
+		String[] local_version = db_get_local_version();
+		String[] grid_version = db_version_read();
+		if (local_version != null && Arrays.equals(local_version, grid_version)) {
+			System.out.println("(qm) db: Local QoS database is up to date.");
+			_db.set_journal(true);
+			return true;
+		}
+
+		GeniiPath dbFile = new GeniiPath(db_grid_path);
+		if (!dbFile.exists()) {
+			System.out.println("(qm) db: Please run 'qos-manager --init-db' to initialize the QoS database.");
+			return false;
+		}
+		List<String> names = db_log_list();
+		if (names == null) return false;
+
+		// Try the local copy first
+		String db_id = null;
+		int seq = -1;
+		if (local_version != null) {
+			db_id = local_version[0];
+			seq = Integer.parseInt(local_version[1]);
+		}
+		List<Integer> pending = null;
+		if (db_id != null && seq >= 0) {
+			List<Integer> seqs = db_log_seqs(names, db_id);
+			// the newest segment of a lineage is always kept in the grid
+			if (!seqs.isEmpty() && seqs.get(seqs.size() - 1) >= seq) {
+				pending = db_log_pending(seqs, seq);
+			}
+		}
+		if (pending != null && !pending.isEmpty()) {
+			System.out.println("(qm) db: Sync " + pending.size() + " log segments from grid to local.");
+			for (int s: pending) {
+				if (!db_log_apply(db_id, s)) {
+					pending = null;
+					break;
+				}
+			}
+		}
+
+		// Otherwise copy the whole file
+		if (pending == null && !db_sync_down_full(names)) return false;
+		_db.set_journal(true);
+		return true;
+	}
+
+	/**
+	 * QoS DB: Replace the local qos.db with the newest base in the grid,
+	 * and replay the log segments after it. That is the newest base of the
+	 * lineage in the version file, or qos.db if compaction did not publish
+	 * one yet. A base removed by a compaction meanwhile is looked up again.
+	 * @param names from db_log_list
+	 * @return
+	 */
+	private boolean db_sync_down_full(List<String> names) {
+		// the local file is replaced, so the open connection would go stale
+		_db.close();
+		_db.set_journal(false);
+		System.out.println("(qm) db: Sync from grid to local.");
+		for (int attempt = 0; ; attempt++) {
+			String[] grid_version = db_version_read();
+			String base = db_log_base(names, grid_version == null ? null : grid_version[0]);
+			String base_path = base == null ? db_get_grid_path() : db_log_get_path() + "/" + base;
+			PathOutcome po = CopyTool.copy("grid:" + base_path,
+					"local:" + db_get_local_path(), false, true, null, stderr);
+			if (!PathOutcome.OUTCOME_SUCCESS.differs(po)) break;
+			System.out.println(po.toString());
+			if (base == null || attempt + 1 >= DB_SYNC_RETRIES) return false;
+			names = db_log_list();
+			if (names == null) return false;
+		}
+		if (!db_migrate()) return false;
+		String db_id = null;
+		int seq = -1;
+		try {
+			db_id = db_get_sync_state("DbId");
+			seq = Integer.parseInt(db_get_sync_state("LogSeq"));
+		} catch (Exception e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			return false;
+		}
+		List<Integer> pending = db_log_pending(db_log_seqs(names, db_id), seq);
+		if (pending == null) {
+			System.out.println("(qm) db: Error: The QoS database log in grid:" + db_log_get_path() + " is incomplete.");
+			return false;
+		}
+		if (!pending.isEmpty()) {
+			System.out.println("(qm) db: Sync " + pending.size() + " log segments from grid to local.");
+		}
+		for (int s: pending) {
+			if (!db_log_apply(db_id, s)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * QoS DB: Take the lease on the QoS database in the grid. Only the
+	 * holder appends to the log, so segments, compaction and the version
+	 * file are written in order. A lease that has expired is broken, as its
+	 * holder is gone or too slow.
+	 * @return
+	 */
+	private boolean db_lease_acquire() {
+		String lease_path = db_get_grid_path() + DB_LEASE_SUFFIX;
+		String owner = UUID.randomUUID().toString() + "@" + System.getProperty("user.name");
+		long deadline = System.currentTimeMillis() + DB_LEASE_WAIT_MS;
+		long backoff = 100;
+		Random rnd = new Random();
+		while (true) {
+			long now = System.currentTimeMillis();
+			String lease = db_grid_read(lease_path);
+			if (lease == null) {
+				if (db_grid_create(lease_path, owner + " " + (now + DB_LEASE_MS) + "\n")) {
+					synchronized (_db_lease_lock) {
+						_db_lease_owner = owner;
+					}
+					return true;
+				}
+				lease = db_grid_read(lease_path); // taken meanwhile?
+				if (lease == null) {
+					System.out.println("(qm) db: Error: Cannot create grid:" + lease_path);
+					return false;
+				}
+			}
+			String[] fields = lease.trim().split(" ");
+			long expiry = 0;
+			try {
+				expiry = Long.parseLong(fields[fields.length - 1]);
+			} catch (NumberFormatException e) {
+				// an unreadable lease is treated as expired
+			}
+			if (expiry < now) {
+				System.out.println("(qm) db: Break the expired lease of " + fields[0]);
+				if (!db_lease_break(lease_path, lease)) return false;
+				continue;
+			}
+			if (now > deadline) {
+				System.out.println("(qm) db: Error: The QoS database is locked by " + fields[0]
+						+ ", please retry later or remove grid:" + lease_path);
+				return false;
+			}
+			System.out.println("(qm) db: The QoS database is locked by " + fields[0] + ", waiting.");
+			try {
+				Thread.sleep(backoff + rnd.nextInt((int) backoff));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			backoff = Math.min(backoff * 2, 5000);
+		}
+	}
+
+	/**
+	 * QoS DB: Remove an expired lease, unless it changed since it was read:
+	 * another waiter may have broken it and taken a new one, or its holder
+	 * renewed it.
+	 * @param lease_path
+	 * @param expired the content that was read
+	 * @return false if the lease cannot be removed
+	 */
+	private boolean db_lease_break(String lease_path, String expired) {
+		String lease = db_grid_read(lease_path);
+		if (lease == null || !lease.equals(expired)) return true;
+		return db_lease_delete(lease_path);
+	}
+
+	/**
+	 * QoS DB: Extend the lease by DB_LEASE_MS, if it is still ours. Every
+	 * step that publishes to the grid checks the lease this way first. The
+	 * renewed lease is written under a temporary name and swapped in for
+	 * the one that was read, and read back: a waiter that broke the lease
+	 * meanwhile holds the name, and the lease is lost. So is a lease that
+	 * expired before it was renewed.
+	 * @return false if the lease is not held or was lost to another client
+	 */
+	private boolean db_lease_renew() {
+		synchronized (_db_lease_lock) {
+			if (_db_lease_owner == null) return false;
+			String lease_path = db_get_grid_path() + DB_LEASE_SUFFIX;
+			String lease = db_grid_read(lease_path);
+			if (lease == null || !lease.startsWith(_db_lease_owner + " ")) return db_lease_lost();
+			long expiry = 0;
+			try {
+				expiry = Long.parseLong(lease.trim().substring(_db_lease_owner.length() + 1));
+			} catch (NumberFormatException e) {
+				// an unreadable lease is treated as expired
+			}
+			if (expiry < System.currentTimeMillis()) {
+				// a waiter may be breaking it right now
+				return db_lease_lost();
+			}
+			String renewed = _db_lease_owner + " " + (System.currentTimeMillis() + DB_LEASE_MS) + "\n";
+			RNSPath part = db_grid_write_part(lease_path, renewed);
+			if (part == null) {
+				// the lease is still ours until it expires
+				return true;
+			}
+			if (!lease.equals(db_grid_read(lease_path))) {
+				db_grid_drop_part(part);
+				return db_lease_lost();
+			}
+			if (!db_lease_delete(lease_path)) {
+				db_grid_drop_part(part);
+				return true;
+			}
+			if (!db_grid_link_part(part, lease_path) || !renewed.equals(db_grid_read(lease_path))) {
+				return db_lease_lost();
+			}
+			return true;
+		}
+	}
+
+	private boolean db_lease_lost() {
+		System.out.println("(qm) db: Error: The lease on the QoS database was broken by another client.");
+		_db_lease_owner = null;
+		return false;
+	}
+
+	/**
+	 * QoS DB: Renew the lease in the background every third of DB_LEASE_MS
+	 * while it is held, so a slow upload of the base does not let another
+	 * writer in.
+	 * @return the renewing thread, to interrupt when the lease is released
+	 */
+	private Thread db_lease_keep() {
+		final ICallingContext context;
+		try {
+			context = ContextManager.getExistingContext();
+		} catch (IOException e) {
+			// without renewal the steps still check the lease
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			return null;
+		}
+		Thread renewer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Closeable assumed = ContextManager.temporarilyAssumeContext(context);
+				try {
+					do {
+						Thread.sleep(DB_LEASE_MS / 3);
+					} while (db_lease_renew());
+				} catch (InterruptedException e) {
+					// released
+				} finally {
+					StreamUtils.close(assumed);
+				}
+			}
+		}, "qos-lease");
+		renewer.setDaemon(true);
+		renewer.start();
+		return renewer;
+	}
+
+	/**
+	 * QoS DB: Give up the lease, if it is still ours.
+	 * @param renewer from db_lease_keep, or null
+	 */
+	private void db_lease_release(Thread renewer) {
+		if (renewer != null) {
+			renewer.interrupt();
+			try {
+				renewer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (_db_lease_lock) {
+			if (_db_lease_owner == null) return;
+			String lease_path = db_get_grid_path() + DB_LEASE_SUFFIX;
+			String lease = db_grid_read(lease_path);
+			if (lease != null && lease.startsWith(_db_lease_owner + " ")) {
+				db_lease_delete(lease_path);
+			}
+			_db_lease_owner = null;
+		}
+	}
+
+	private boolean db_lease_delete(String lease_path) {
+		try {
+			RNSPath.getCurrent().lookup(lease_path, RNSPathQueryFlags.MUST_EXIST).delete();
+			return true;
+		} catch (RNSException e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * QoS DB: Rebase the local changes onto the newest QoS database in the
+	 * grid: fetch it, and replay the ChangeLog on top as new changes. The
+	 * replay fails if a change no longer applies, e.g. another client
+	 * scheduled the same directory meanwhile.
+	 * @param names from db_log_list
+	 * @return
+	 */
+	private boolean db_rebase(List<String> names) {
+		List<String> entries;
+		try {
+			entries = _db.query_strings("SELECT Entry FROM ChangeLog ORDER BY Seq;");
+		} catch (Exception e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			return false;
+		}
+		System.out.println("(qm) db: The QoS database in grid has changed, rebase " + entries.size() + " local changes.");
+		if (!db_sync_down_full(names)) return false;
+		_db.set_journal(true);
+		try {
+			_db.begin();
+			for (String entry: entries) {
+				db_log_replay(entry, true);
+			}
+			_db.commit();
+		} catch (Exception e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			System.out.println("(qm) db: Error: Local changes conflict with the QoS database in grid, they are discarded.");
+			_db.rollback();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * QoS DB: Synchronize the local qos.db to grid home directory. Only the
+	 * changes recorded since the last sync are shipped, as one log segment.
+	 * The segment is appended under the lease and only if the local copy is
+	 * at the newest segment; otherwise the changes are rebased and retried.
+	 * @return
+	 */
+	private boolean db_sync_up() {
+		String db_grid_path = db_get_grid_path();
+		String db_local_path = db_get_local_path();
+		if (db_grid_path == null || db_local_path == null) {
+			return false;
+		}
+		File dbFile = new File(db_local_path);
+		if (!dbFile.exists()) {
+			System.out.println("(qm) db: Error: Cannot find local:" + db_local_path);
+			return false;
+		}
+		try {
+			if (new GeniiPath(db_grid_path).exists() && !_db.exists("SELECT Seq FROM ChangeLog;")) {
+				System.out.println("(qm) db: No local changes to sync.");
+				return true;
+			}
+		} catch (Exception e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			return false;
+		}
+		if (!db_lease_acquire()) return false;
+		Thread renewer = db_lease_keep();
+		try {
+			return db_sync_up_locked();
+		} finally {
+			db_lease_release(renewer);
+		}
+	}
+
+	private boolean db_sync_up_locked() {
+		for (int attempt = 0; attempt < DB_SYNC_RETRIES; attempt++) {
+			List<String> names = db_log_list();
+			if (names == null) return false;
+			try {
+				if (!new GeniiPath(db_get_grid_path()).exists()) {
+					// A new lineage: the whole file is the base, and an empty
+					// segment marks where it starts.
+					String db_id = UUID.randomUUID().toString();
+					_db.begin();
+					_db.update_unlogged("DELETE FROM ChangeLog;");
+					db_set_sync_state("DbId", db_id);
+					db_set_sync_state("LogSeq", "0");
+					_db.commit();
+					if (!db_version_clear() || !db_log_write(db_id, 0, new ArrayList<String>())
+							|| !db_log_publish_base(db_id, 0, names)) return false;
+					db_version_write(db_id, 0);
+					return true;
+				}
+
+				int last = _db.query_int("SELECT IFNULL(MAX(Seq), 0) FROM ChangeLog;");
+				List<String> entries = _db.query_strings("SELECT Entry FROM ChangeLog WHERE Seq <= ? ORDER BY Seq;", last);
+				String db_id = db_get_sync_state("DbId");
+				int seq = Integer.parseInt(db_get_sync_state("LogSeq"));
+				List<Integer> seqs = db_log_seqs(names, db_id);
+				if (seqs.isEmpty() && names.size() > 0) {
+					System.out.println("(qm) db: Error: The QoS database in grid was initialized again, local changes are not synchronized.");
+					return false;
+				}
+				// compare: the local copy must be at the newest segment
+				int newest = seqs.isEmpty() ? 0 : seqs.get(seqs.size() - 1);
+				if (seq == newest) {
+					// swap: the segment name can only be taken once
+					System.out.println("(qm) db: Sync " + entries.size() + " changes from local to grid.");
+					if (!db_version_clear()) return false;
+					if (db_log_write(db_id, seq + 1, entries)) {
+						_db.begin();
+						_db.update_unlogged("DELETE FROM ChangeLog WHERE Seq <= ?;", last);
+						db_set_sync_state("LogSeq", Integer.toString(seq + 1));
+						_db.commit();
+						db_version_write(db_id, seq + 1);
+						if ((seq + 1) % DB_LOG_COMPACT == 0) {
+							return db_log_publish_base(db_id, seq + 1, names);
+						}
+						return true;
+					}
+					// taken by a client whose lease was broken, rebase on it
+					names = db_log_list();
+					if (names == null || !names.contains(db_log_name(db_id, seq + 1))) return false;
+				}
+			} catch (Exception e) {
+				System.out.println(e.getClass().getName() + ": " + e.getMessage());
+				_db.rollback();
+				return false;
+			}
+			if (!db_rebase(names)) return false;
+		}
+		System.out.println("(qm) db: Error: The QoS database in grid keeps changing, local changes are not synchronized.");
+		return false;
+	}
+
+	/**
+	 * QoS DB: Destroy the local qos.db file.
+	 * @return
+	 */
+	private boolean db_destroy() {
+		String db_grid_path = db_get_grid_path();
+		String db_local_path = db_get_local_path();
+		if (db_grid_path == null || db_local_path == null) {
+			return false;
+		}
+		GeniiPath dbFileGrid = new GeniiPath(db_grid_path);
+		// The qos.db file in grid home directory should be removed by hand
+		assert(dbFileGrid.exists() == false);
+
+		_db.close();
+		_db.set_journal(false);
+		File dbFileLocal = new File(db_local_path);
+		if (dbFileLocal.exists()) {
+			dbFileLocal.delete();
+		}
+		return true;
+	}
+
+	/**
+	 * QoS DB: Initialize the DB. If the qos.db file already exists in user
+	 * home directory, this file should be removed manually.
+	 * @return
+	 */
+	private boolean db_init() {
+		return db_create_tables() && db_migrate();
+	}
+
+	/**
+	 * QoS DB: Create the tables of schema version 0. Later versions are
+	 * reached by db_migrate.
+	 * @return
+	 */
+	private boolean db_create_tables() {
+		try {
+			QosSpec spec = new QosSpec();
+			String create_spec_table = "CREATE TABLE" + spec.get_sql_header();
+			ContainerStatus status = new ContainerStatus();
+			String create_status_table = "CREATE TABLE" + status.get_sql_header();
+
+			_db.update(create_spec_table);
+			System.out.println("(qm) db: Connect to QoS DB successfully.");
+			_db.update(create_status_table);
 
 			// ReplicaFlag: 1 primary, 0 replica, -1 none
 			// ResolverFlag: 1 resolver, 0 not
 			// ReplicaId: non-negative: actual id, negative: (abs - 1) id to remove
 			// ON CONFLICT REPLACE?
 			String sql = "CREATE TABLE Relationships(Directory TEXT, SpecId TEXT, ContainerId TEXT, ReplicaFlag INT, ResolverFlag INT, ReplicaId INT, UNIQUE(Directory, SpecId, ContainerId), UNIQUE(Directory, ReplicaId));";
-			stmt.executeUpdate(sql);
-
-			stmt.close();
-			conn.close();
+			_db.update(sql);
 			return true;
 		} catch (Exception e) {
 			System.out.println(e.getClass().getName() + ": " + e.getMessage());
@@ -858,17 +2273,61 @@ public class QosManagerTool extends BaseGridTool
 		return false;
 	}
 
+	// Schema migrations, DB_MIGRATIONS[v] brings a qos.db from version v to
+	// v + 1. The version is kept in PRAGMA user_version, 0 for old files.
+	static final private String[][] DB_MIGRATIONS = {
+		{ // 1: indexes for db_rel_query and the RNS lookup. Lookups by
+		  // Directory already use the index of UNIQUE(Directory, SpecId, ContainerId).
+			"CREATE INDEX IF NOT EXISTS RelSpecIndex ON Relationships(SpecId);",
+			"CREATE INDEX IF NOT EXISTS RelContainerIndex ON Relationships(ContainerId);",
+			"CREATE INDEX IF NOT EXISTS ContainerRnsIndex ON Containers(RnsPath);",
+		},
+		{ // 2: sync state and the change log, see db_sync_down and db_sync_up.
+		  // Files older than this are all of the "legacy" lineage.
+			"CREATE TABLE IF NOT EXISTS SyncState(Key TEXT PRIMARY KEY, Value TEXT);",
+			"INSERT OR IGNORE INTO SyncState VALUES ('DbId', 'legacy');",
+			"INSERT OR IGNORE INTO SyncState VALUES ('LogSeq', '0');",
+			"CREATE TABLE IF NOT EXISTS ChangeLog(Seq INTEGER PRIMARY KEY AUTOINCREMENT, Entry TEXT);",
+		},
+		{ // 3: circuit breakers of unreachable containers, see refresh_containers.
+		  // OpenUntil is in ms since the epoch; no row means the breaker is closed.
+			"CREATE TABLE IF NOT EXISTS ContainerHealth(ContainerId TEXT PRIMARY KEY, Failures INT, OpenUntil INT);",
+		},
+	};
+
+	/**
+	 * QoS DB: Bring the local qos.db up to the current schema version. Runs
+	 * after every sync down; the migrated file goes to the grid with the next
+	 * sync up.
+	 * @return
+	 */
+	private boolean db_migrate() {
+		try {
+			int version = _db.query_int("PRAGMA user_version;");
+			if (version >= DB_MIGRATIONS.length) return true;
+			_db.begin();
+			for (int v = version; v < DB_MIGRATIONS.length; v++) {
+				System.out.println("(qm) db: Migrate QoS DB schema to version " + (v + 1) + ".");
+				for (String sql: DB_MIGRATIONS[v]) {
+					_db.update_unlogged(sql);
+				}
+			}
+			_db.update_unlogged("PRAGMA user_version = " + DB_MIGRATIONS.length + ";");
+			_db.commit();
+		} catch (Exception e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			_db.rollback();
+			return false;
+		}
+		return true;
+	}
+
 	/**
 	 * QoS DB: Print out summary of the DB.
 	 * @param verbose
 	 */
 	private void db_summary(boolean verbose) {
-		Connection conn = null;
-		Statement stmt = null;
 		try {
-			Class.forName("org.sqlite.JDBC");
-			conn = DriverManager.getConnection("jdbc:sqlite:" + db_get_local_path());
-
 			System.out.println("----------------------------------------");
 			if (verbose == true) {
 				System.out.println("(qm) db: QoS Database Details:");
@@ -877,11 +2336,8 @@ public class QosManagerTool extends BaseGridTool
 				System.out.println("   - grid:" + db_get_grid_path());
 				System.out.println("   - local:" + db_get_local_path());
 
-				stmt = conn.createStatement();
-
 				System.out.print("  ** SPECIFICATIONS: ");
-				String sql = "SELECT * FROM Specifications;";
-				ResultSet rs_spec = stmt.executeQuery(sql);
+				ResultSet rs_spec = _db.query("SELECT * FROM Specifications;");
 				ResultSetMetaData rsmd_spec = rs_spec.getMetaData();
 
 				int numberOfColumns_spec = rsmd_spec.getColumnCount();
@@ -906,10 +2362,10 @@ public class QosManagerTool extends BaseGridTool
 					}
 					System.out.println("");
 				}
+				rs_spec.close();
 
 				System.out.print("  ** CONTAINERS: ");
-				sql = "SELECT * FROM Containers;";
-				ResultSet rs_container = stmt.executeQuery(sql);
+				ResultSet rs_container = _db.query("SELECT * FROM Containers;");
 				ResultSetMetaData rsmd_container = rs_container.getMetaData();
 
 				int numberOfColumns_container = rsmd_container.getColumnCount();
@@ -934,11 +2390,11 @@ public class QosManagerTool extends BaseGridTool
 					}
 					System.out.println("");
 				}
+				rs_container.close();
 
 				System.out.print("  ** RELATIONSHIPS: ");
-				sql = "SELECT * FROM Relationships;";
-				ResultSet rs_relationship = stmt.executeQuery(sql);
-				ResultSetMetaData rsmd_relationship = rs_container.getMetaData();
+				ResultSet rs_relationship = _db.query("SELECT * FROM Relationships;");
+				ResultSetMetaData rsmd_relationship = rs_relationship.getMetaData();
 
 				String h = rsmd_relationship.getColumnName(1) + ", ";
 				h += rsmd_relationship.getColumnName(4) + " ([P]Primary, [R]Replica, [-]None), ";
@@ -968,6 +2424,7 @@ public class QosManagerTool extends BaseGridTool
 							+ rs_relationship.getString(3) + ")";
 					System.out.println(r);
 				}
+				rs_relationship.close();
 
 			} else { // verbose == false
 				System.out.println("(qm) db: QoS Database Summary:");
@@ -976,30 +2433,19 @@ public class QosManagerTool extends BaseGridTool
 				System.out.println("   - grid:" + db_get_grid_path());
 				System.out.println("   - local:" + db_get_local_path());
 
-				stmt = conn.createStatement();
-
-				String sql = "SELECT SpecId FROM Specifications;";
-				ResultSet rs_spec = stmt.executeQuery(sql);
-
 				System.out.print("  ** SPECIFICATIONS:\t");
-				while (rs_spec.next()) {
-					String columnValue_spec = rs_spec.getString(1);
-					System.out.print(" " + columnValue_spec + ";");
+				for (String spec_id: _db.query_strings("SELECT SpecId FROM Specifications;")) {
+					System.out.print(" " + spec_id + ";");
 				}
 				System.out.println("");
 
-				sql = "SELECT ContainerId FROM Containers;";
-				ResultSet rs_container = stmt.executeQuery(sql);
-
 				System.out.print("  ** CONTAINERS:\t");
-				while (rs_container.next()) {
-					String columnValue_container = rs_container.getString(1);
-					System.out.print(" " + columnValue_container + ";");
+				for (String container_id: _db.query_strings("SELECT ContainerId FROM Containers;")) {
+					System.out.print(" " + container_id + ";");
 				}
 				System.out.println("");
 
-				sql = "SELECT * FROM Relationships;";
-				ResultSet rs_relationship = stmt.executeQuery(sql);
+				ResultSet rs_relationship = _db.query("SELECT * FROM Relationships;");
 
 				System.out.println("  ** RELATIONSHIPS:");
 				while (rs_relationship.next()) {
@@ -1015,11 +2461,10 @@ public class QosManagerTool extends BaseGridTool
 							+ rs_relationship.getString(3) + ")";
 					System.out.println(r);
 				}
+				rs_relationship.close();
 			}
 
 			System.out.println("----------------------------------------");
-			stmt.close();
-			conn.close();
 
 		} catch (Exception e) {
 			System.out.println(e.getClass().getName() + ": " + e.getMessage());
@@ -1034,53 +2479,156 @@ public class QosManagerTool extends BaseGridTool
 	 */
 	private boolean db_update_container(ContainerStatus status, boolean init) {
 		assert (status != null);
-		Connection conn = null;
-		Statement stmt = null;
 		try {
-			Class.forName("org.sqlite.JDBC");
-			conn = DriverManager.getConnection("jdbc:sqlite:" + db_get_local_path());
-			stmt = conn.createStatement();
-
-			String sql = "SELECT * FROM Containers WHERE ContainerId = '" + status.ContainerId + "';";
-			ResultSet rs = stmt.executeQuery(sql);
+			_db.begin();
+			String sql = "SELECT StorageReserved FROM Containers WHERE ContainerId = ?;";
+			List<Integer> reserved = _db.query_ints(sql, status.ContainerId);
 
-			if (rs.next()) { // exist
+			if (reserved.size() > 0) { // exist
 				if (init) { // error
 					System.out.println("(qm) db: Error: Container: " + status.ContainerId + " already exists.");
+					_db.rollback();
 					return false;
 				} else { // update
 					System.out.println("(qm) db: Update status of container: " + status.ContainerId);
 
 					// Maintain the reserved size
-					sql = "SELECT StorageReserved FROM Containers WHERE ContainerId = '" + status.ContainerId + "';";
-					ResultSet rs_reserved = stmt.executeQuery(sql);
-					status.StorageReserved = rs_reserved.getInt(1);
+					status.StorageReserved = reserved.get(0);
 
-					sql = "DELETE FROM Containers WHERE ContainerId = '" + status.ContainerId + "';";
-					stmt.executeUpdate(sql);
-					sql = "INSERT INTO Containers VALUES (" + status.to_sql_string() + ");";
-					stmt.executeUpdate(sql);
+					_db.update("UPDATE Containers SET " + status.to_sql_update() + " WHERE ContainerId = ?;",
+							status.to_sql_update_args());
 				}
 			} else { // not exist
 				if (init) { // insert
 					System.out.println("(qm) db: Insert status of new container: " + status.ContainerId);
-					sql = "INSERT INTO Containers VALUES (" + status.to_sql_string() + ");";
-					stmt.executeUpdate(sql);
+					_db.update("INSERT INTO Containers VALUES (" + status.to_sql_params() + ");",
+							status.to_sql_args());
 				} else { // error
 					System.out.println("(qm) db: Error: Cannot update a not exist container.");
+					_db.rollback();
 					return false;
 				}
 			}
-			stmt.close();
-			conn.close();
+			_db.commit();
 		} catch (Exception e) {
 			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			_db.rollback();
 			return false;
 		}
 		return true;
 	}
 
 
+	/**
+	 * QoS DB: Update the status of many containers in one transaction.
+	 * @param statuses
+	 * @return
+	 */
+	private boolean db_update_containers(List<ContainerStatus> statuses) {
+		try {
+			_db.begin();
+			for (ContainerStatus status: statuses) {
+				if (!db_update_container(status, false)) {
+					_db.rollback();
+					return false;
+				}
+			}
+			_db.commit();
+		} catch (Exception e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			_db.rollback();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * QoS DB: The open or half-open circuit breakers.
+	 * @return { Failures, OpenUntil } by container id
+	 */
+	private Map<String, long[]> db_get_health() {
+		Map<String, long[]> health = new HashMap<String, long[]>();
+		try {
+			ResultSet rs = _db.query("SELECT ContainerId, Failures, OpenUntil FROM ContainerHealth;");
+			while (rs.next()) {
+				health.put(rs.getString(1), new long[] { rs.getLong(2), rs.getLong(3) });
+			}
+			rs.close();
+		} catch (Exception e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+		}
+		return health;
+	}
+
+	/**
+	 * QoS DB: Update circuit breakers.
+	 * @param health { Failures, OpenUntil } by container id, null to close
+	 * @return
+	 */
+	private boolean db_update_health(Map<String, long[]> health) {
+		try {
+			_db.begin();
+			for (Map.Entry<String, long[]> entry: health.entrySet()) {
+				if (entry.getValue() == null) {
+					_db.update("DELETE FROM ContainerHealth WHERE ContainerId = ?;", entry.getKey());
+				} else {
+					_db.update("INSERT OR REPLACE INTO ContainerHealth VALUES (?, ?, ?);",
+							entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+				}
+			}
+			_db.commit();
+		} catch (Exception e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			_db.rollback();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * QoS DB: Make a replica of a directory its primary, in one transaction.
+	 * The resolver resource is not moved, so ResolverFlag keeps naming the
+	 * container that hosts it.
+	 * @param dir
+	 * @param old_primary_id
+	 * @param new_primary_id
+	 * @return
+	 */
+	private boolean db_promote_replica(String dir, String old_primary_id, String new_primary_id) {
+		dir = "grid:" + new GeniiPath(dir).lookupRNS();
+		try {
+			_db.begin();
+			_db.update("UPDATE Relationships SET ReplicaFlag = 0 WHERE Directory = ? AND ContainerId = ?;",
+					dir, old_primary_id);
+			_db.update("UPDATE Relationships SET ReplicaFlag = 1 WHERE Directory = ? AND ContainerId = ?;",
+					dir, new_primary_id);
+			_db.commit();
+		} catch (Exception e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			_db.rollback();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * QoS DB: Change the reserved size of a container by an increment, so
+	 * changes of concurrent clients add up when they are merged.
+	 * @param container_id
+	 * @param delta MB
+	 * @return
+	 */
+	private boolean db_update_reserved(String container_id, int delta) {
+		try {
+			_db.update("UPDATE Containers SET StorageReserved = StorageReserved + ? WHERE ContainerId = ?;",
+					delta, container_id);
+		} catch (Exception e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			return false;
+		}
+		return true;
+	}
+
 	/**
 	 * QoS DB: Update a spec in DB.
 	 * Caller should be responsible for updating the reserved size for all
@@ -1091,41 +2639,36 @@ public class QosManagerTool extends BaseGridTool
 	 */
 	private boolean db_update_spec(QosSpec spec, boolean init) {
 		assert (spec != null);
-		Connection conn = null;
-		Statement stmt = null;
 		try {
-			Class.forName("org.sqlite.JDBC");
-			conn = DriverManager.getConnection("jdbc:sqlite:" + db_get_local_path());
-			stmt = conn.createStatement();
-
-			String sql = "SELECT * FROM Specifications WHERE SpecId = '" + spec.SpecId + "';";
-			ResultSet rs = stmt.executeQuery(sql);
+			_db.begin();
+			String sql = "SELECT SpecId FROM Specifications WHERE SpecId = ?;";
 
-			if (rs.next()) { // exist
+			if (_db.exists(sql, spec.SpecId)) { // exist
 				if (init) { // error
 					System.out.println("(qm) db: Error: Spec: " + spec.SpecId + " already exists.");
+					_db.rollback();
 					return false;
 				} else { // update
 					System.out.println("(qm) db: Update spec: " + spec.SpecId);
-					sql = "DELETE FROM Specifications WHERE SpecId = '" + spec.SpecId + "';";
-					stmt.executeUpdate(sql);
-					sql = "INSERT INTO Specifications VALUES (" + spec.to_sql_string() + ");";
-					stmt.executeUpdate(sql);
+					_db.update("DELETE FROM Specifications WHERE SpecId = ?;", spec.SpecId);
+					_db.update("INSERT INTO Specifications VALUES (" + spec.to_sql_params() + ");",
+							spec.to_sql_args());
 				}
 			} else { // not exist
 				if (init) { // insert
 					System.out.println("(qm) db: Insert a new spec: " + spec.SpecId);
-					sql = "INSERT INTO Specifications VALUES (" + spec.to_sql_string() + ");";
-					stmt.executeUpdate(sql);
+					_db.update("INSERT INTO Specifications VALUES (" + spec.to_sql_params() + ");",
+							spec.to_sql_args());
 				} else { // error
 					System.out.println("(qm) db: Error: Cannot update a not exist spec.");
+					_db.rollback();
 					return false;
 				}
 			}
-			stmt.close();
-			conn.close();
+			_db.commit();
 		} catch (Exception e) {
 			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			_db.rollback();
 			return false;
 		}
 		return true;
@@ -1144,8 +2687,6 @@ public class QosManagerTool extends BaseGridTool
 	{
 		assert(mkdir_path != null && spec != null);
 		assert(scheduled_container_ids != null && scheduled_container_ids.size() > 0);
-		Connection conn = null;
-		Statement stmt = null;
 
 		GeniiPath dir = new GeniiPath(mkdir_path);
 		mkdir_path = "grid:" + dir.lookupRNS();
@@ -1153,10 +2694,6 @@ public class QosManagerTool extends BaseGridTool
 				" (" + spec.SpecId + ", " + scheduled_container_ids.toString() + ")");
 
 		try {
-			Class.forName("org.sqlite.JDBC");
-			conn = DriverManager.getConnection("jdbc:sqlite:" + db_get_local_path());
-			stmt = conn.createStatement();
-
 			List<String> container_ids_old = db_rel_query(RelQuery.CONTAINERS_RELATED_TO_DIR, mkdir_path);
 			System.out.println("(qm) db: Previous scheduled containers: " + container_ids_old.toString());
 			if (container_ids_old.size() > 0) { // if directory exists in db
@@ -1165,37 +2702,29 @@ public class QosManagerTool extends BaseGridTool
 					return false;
 				} else { // update
 					//check if spec exists
-					String sql = "SELECT * FROM Specifications WHERE SpecId = '" + spec.SpecId + "';";
-					ResultSet rs = stmt.executeQuery(sql);
-					if (rs.next()) { // if spec exists in db
-						String old_spec = "SELECT ReservedSize FROM Specifications WHERE SpecId = '"
-								+ spec.SpecId + "';";
-						ResultSet old_reserved = stmt.executeQuery(old_spec);
-						int old_spec_reserved = old_reserved.getInt(1);
-
-						sql = "SELECT ContainerId FROM Relationships WHERE Directory = '" + mkdir_path + "' AND ResolverFlag = 1;";
-						rs = stmt.executeQuery(sql);
+					List<Integer> old_reserved = _db.query_ints(
+							"SELECT ReservedSize FROM Specifications WHERE SpecId = ?;", spec.SpecId);
+					if (old_reserved.size() > 0) { // if spec exists in db
+						int old_spec_reserved = old_reserved.get(0);
+
 						String resolver_id = null;
-						if (rs.next()) {
-							resolver_id = rs.getString(1);
+						List<String> resolver_ids = _db.query_strings(
+								"SELECT ContainerId FROM Relationships WHERE Directory = ? AND ResolverFlag = 1;", mkdir_path);
+						if (resolver_ids.size() > 0) {
+							resolver_id = resolver_ids.get(0);
 						}
 
 						for (int i = 0; i < scheduled_container_ids.size(); i++) {
-							if (container_ids_old.contains(scheduled_container_ids.get(i))) {
+							String container_id = scheduled_container_ids.get(i);
+							if (container_ids_old.contains(container_id)) {
 								// a container both in old and new
 								//update reserved storage
-								String con_storagereserved = "SELECT StorageReserved FROM Containers WHERE ContainerId = '"
-										+ scheduled_container_ids.get(i) + "';";
-								ResultSet con_reserved = stmt.executeQuery(con_storagereserved);
-								int container_storagereserved = con_reserved.getInt(1) + spec.ReservedSize - old_spec_reserved;
-								String sql_update_rstorage = "UPDATE Containers SET StorageReserved = " + container_storagereserved
-										+ " where ContainerID = '" + scheduled_container_ids.get(i) + "';";
-								stmt.executeUpdate(sql_update_rstorage);
-
-								String sql_replicaid = "SELECT ReplicaId FROM Relationships WHERE ContainerId = '"
-										+ scheduled_container_ids.get(i) + "' AND " + "Directory = '" + mkdir_path + "';";
-								ResultSet rs_old_replicaid = stmt.executeQuery(sql_replicaid);
-								int replicaid = rs_old_replicaid.getInt(1);
+								_db.update("UPDATE Containers SET StorageReserved = StorageReserved + ? WHERE ContainerId = ?;",
+										spec.ReservedSize - old_spec_reserved, container_id);
+
+								int replicaid = _db.query_int(
+										"SELECT ReplicaId FROM Relationships WHERE ContainerId = ? AND Directory = ?;",
+										container_id, mkdir_path);
 
 								// Update Relationships and set ReplicaId, ReplicaFlag and ResolverFlag
 								int ReplicaFlag = (i == 0 ? 1 : 0);
@@ -1203,46 +2732,28 @@ public class QosManagerTool extends BaseGridTool
 								if (resolver_id == null) {
 									if (scheduled_container_ids.size() > 1) {
 										if (i == 0) {
-											String resolver_rns = null;
-											sql = "SELECT RnsPath FROM Containers WHERE ContainerId = '" + scheduled_container_ids.get(1)+ "';";
-											rs = stmt.executeQuery(sql);
-											if (rs.next()) resolver_rns = rs.getString(1);
-											if (resolver_rns != null) {
-												System.out.println("(qm) db: Create resolver on " +  resolver_rns);
-												resolver_policy(dir.lookupRNS().toString(), resolver_rns , true);
-											}
+											db_create_resolver(dir, scheduled_container_ids.get(1));
 										} else if (i == 1) {
 											ResolverFlag = 1;
 										}
 									}
 								} else {
-									if (scheduled_container_ids.get(i).equals(resolver_id)) {
+									if (container_id.equals(resolver_id)) {
 										ResolverFlag = 1;
 									}
 								}
 								int ReplicaId = replicaid;
-								sql = "UPDATE Relationships SET ReplicaFlag = " + ReplicaFlag
-										+ ", ResolverFlag = " + ResolverFlag
-										+ ", ReplicaId = " + ReplicaId
-										+ " Where Directory = '" + mkdir_path
-										+ "' AND ContainerId = '" + scheduled_container_ids.get(i) + "';";
-								stmt.executeUpdate(sql);
+								_db.update("UPDATE Relationships SET ReplicaFlag = ?, ResolverFlag = ?, ReplicaId = ?"
+										+ " WHERE Directory = ? AND ContainerId = ?;",
+										ReplicaFlag, ResolverFlag, ReplicaId, mkdir_path, container_id);
 							} else {
 								// a container only in new: create and file copy
-								String con_storagereserved = "SELECT StorageReserved FROM Containers WHERE ContainerId = '"
-										+ scheduled_container_ids.get(i) + "';";
-								ResultSet con_reserved = stmt.executeQuery(con_storagereserved);
-								int container_storagereserved = con_reserved.getInt(1) + spec.ReservedSize;
-								String sql_update_rstorage = "UPDATE Containers SET StorageReserved = " + container_storagereserved
-										+ " where ContainerID = '" + scheduled_container_ids.get(i) + "';";
-								stmt.executeUpdate(sql_update_rstorage);
+								_db.update("UPDATE Containers SET StorageReserved = StorageReserved + ? WHERE ContainerId = ?;",
+										spec.ReservedSize, container_id);
 
 								// get existing max replica id
 								int max_replica_id = -1;
-								String sql_replicaid = "SELECT ReplicaId FROM Relationships WHERE Directory = '" + mkdir_path + "';";
-								ResultSet rs_replicaid = stmt.executeQuery(sql_replicaid);
-								while (rs_replicaid.next()) {
-									int id = rs_replicaid.getInt(1);
+								for (int id: _db.query_ints("SELECT ReplicaId FROM Relationships WHERE Directory = ?;", mkdir_path)) {
 									if (id < 0) id = -id - 1;
 									if (max_replica_id < id) max_replica_id = id;
 								}
@@ -1253,60 +2764,43 @@ public class QosManagerTool extends BaseGridTool
 								if (resolver_id == null) {
 									if (scheduled_container_ids.size() > 1) {
 										if (i == 0) {
-											String resolver_rns = null;
-											sql = "SELECT RnsPath FROM Containers WHERE ContainerId = '" + scheduled_container_ids.get(1)+ "';";
-											rs = stmt.executeQuery(sql);
-											if (rs.next()) resolver_rns = rs.getString(1);
-											if (resolver_rns != null) {
-												System.out.println("(qm) db: Create resolver on " +  resolver_rns);
-												resolver_policy(dir.lookupRNS().toString(), resolver_rns , true);
-											}
+											db_create_resolver(dir, scheduled_container_ids.get(1));
 										} else if (i == 1) {
 											ResolverFlag = 1;
 										}
 									}
 								} else {
-									if (scheduled_container_ids.get(i).equals(resolver_id)) {
+									if (container_id.equals(resolver_id)) {
 										ResolverFlag = 1;
 									}
 								}
 								int ReplicaId = max_replica_id + 1;
 
-								sql = "INSERT INTO Relationships VALUES ('"
-										+ mkdir_path + "', '" + spec.SpecId + "', '"
-										+ scheduled_container_ids.get(i)+ "' ,"
-										+ ReplicaFlag + "," + ResolverFlag + "," + ReplicaId + ");";
-								stmt.executeUpdate(sql);
-
-								String replica_rns = null;
-								sql = "SELECT RnsPath FROM Containers WHERE ContainerId = '" + scheduled_container_ids.get(i)+ "';";
-								rs = stmt.executeQuery(sql);
-								if (rs.next()) replica_rns = rs.getString(1);
-								if (replica_rns != null) {
-									System.out.println("(qm) db: Create replication on " +  replica_rns);
-									GeniiPath p = new GeniiPath(replica_rns);
+								_db.update("INSERT INTO Relationships VALUES (?, ?, ?, ?, ?, ?);",
+										mkdir_path, spec.SpecId, container_id, ReplicaFlag, ResolverFlag, ReplicaId);
+
+								List<String> replica_rns = _db.query_strings(
+										"SELECT RnsPath FROM Containers WHERE ContainerId = ?;", container_id);
+								if (replica_rns.size() > 0 && replica_rns.get(0) != null) {
+									System.out.println("(qm) db: Create replication on " +  replica_rns.get(0));
+									GeniiPath p = new GeniiPath(replica_rns.get(0));
 									replicate_policy(dir.lookupRNS().toString(), p.lookupRNS().toString(), null);
 								}
 							}
 						}
 						//for old containers which do not exist in new scheduled containers
 						for (int i = 0; i < container_ids_old.size(); i++) {
-							if (!scheduled_container_ids.contains(container_ids_old.get(i))) {
+							String container_id = container_ids_old.get(i);
+							if (!scheduled_container_ids.contains(container_id)) {
 								// Set replica ID to negative.
 								// Users should call --clean-replica after file copy is done.
-								sql = "SELECT ReplicaId FROM Relationships WHERE ContainerId = '"
-										+ container_ids_old.get(i) + "' AND Directory = '" + mkdir_path + "';";
-								rs = stmt.executeQuery(sql);
-								int old_replica_id = rs.getInt(1);
-								sql = "UPDATE Relationships SET ReplicaId = " + (-old_replica_id - 1)
-										+ " where ContainerID = '" + container_ids_old.get(i)
-										+ "' AND Directory = '" + mkdir_path + "';";
-								stmt.executeUpdate(sql);
-								// clean the primary flag
-								sql = "UPDATE Relationships SET ReplicaFlag = " + 0
-										+ " where ContainerID = '" + container_ids_old.get(i)
-										+ "' AND Directory = '" + mkdir_path + "';";
-								stmt.executeUpdate(sql);
+								int old_replica_id = _db.query_int(
+										"SELECT ReplicaId FROM Relationships WHERE ContainerId = ? AND Directory = ?;",
+										container_id, mkdir_path);
+								// and clean the primary flag
+								_db.update("UPDATE Relationships SET ReplicaId = ?, ReplicaFlag = 0"
+										+ " WHERE ContainerId = ? AND Directory = ?;",
+										-old_replica_id - 1, container_id, mkdir_path);
 							}
 						}
 					} else { // if spec does not exist in db
@@ -1314,50 +2808,105 @@ public class QosManagerTool extends BaseGridTool
 						return false;
 					}
 				}
-			} else { // if directory does not exist in db
-				if (init == false) { // update
-					System.out.println("(qm) db: Error: directory should exist in db.");
+			} else { // if directory does not exist in db
+				if (init == false) { // update
+					System.out.println("(qm) db: Error: directory should exist in db.");
+					return false;
+				} else { // init
+					_db.begin();
+					if (!db_insert_scheduled_directory(mkdir_path, spec, scheduled_container_ids)) {
+						_db.rollback();
+						return false;
+					}
+					_db.commit();
+				}
+			}
+		} catch (Exception e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			_db.rollback();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * QoS DB: Create the resolver of a rescheduled directory on a container.
+	 * @param dir
+	 * @param resolver_container_id
+	 */
+	private void db_create_resolver(GeniiPath dir, String resolver_container_id) throws Exception {
+		List<String> resolver_rns = _db.query_strings(
+				"SELECT RnsPath FROM Containers WHERE ContainerId = ?;", resolver_container_id);
+		if (resolver_rns.size() > 0 && resolver_rns.get(0) != null) {
+			System.out.println("(qm) db: Create resolver on " +  resolver_rns.get(0));
+			resolver_policy(dir.lookupRNS().toString(), resolver_rns.get(0), true);
+		}
+	}
+
+	/**
+	 * QoS DB: Insert a newly created directory. The caller decides the
+	 * transaction. The spec is inserted or updated, and the reserved size is
+	 * added to every scheduled container.
+	 * @param mkdir_path grid path of the directory, as stored in the DB
+	 * @param spec
+	 * @param scheduled_container_ids primary first, then the resolver
+	 * @return
+	 */
+	private boolean db_insert_scheduled_directory(String mkdir_path, QosSpec spec,
+			List<String> scheduled_container_ids) throws ClassNotFoundException, SQLException
+	{
+		if (_db.exists("SELECT ContainerId FROM Relationships WHERE Directory = ?;", mkdir_path)) {
+			System.out.println("(qm) db: Error: directory should not exist if it is created for the first time.");
+			return false;
+		}
+		//check if spec exists
+		if (_db.exists("SELECT SpecId FROM Specifications WHERE SpecId = ?;", spec.SpecId)) {
+			//update specification
+			System.out.println("(qm) db: Update spec: " + spec.SpecId);
+			_db.update("DELETE FROM Specifications WHERE SpecId = ?;", spec.SpecId);
+		}
+		//insert new specification
+		_db.update("INSERT INTO Specifications VALUES (" + spec.to_sql_params() + ");", spec.to_sql_args());
+		for (int i = 0; i < scheduled_container_ids.size(); i++) {
+			String container_id = scheduled_container_ids.get(i);
+			//update container reserved size
+			_db.update("UPDATE Containers SET StorageReserved = StorageReserved + ? WHERE ContainerId = ?;",
+					spec.ReservedSize, container_id);
+			//insert into relationships: the first is the primary, the second the resolver
+			int ReplicaFlag = (i == 0 ? 1 : 0);
+			int ResolverFlag = (i == 1 ? 1 : 0);
+			_db.update("INSERT INTO Relationships VALUES (?, ?, ?, ?, ?, ?);",
+					mkdir_path, spec.SpecId, container_id, ReplicaFlag, ResolverFlag, i);
+		}
+		return true;
+	}
+
+	/**
+	 * QoS DB: Add a batch of newly created directories in one transaction.
+	 * Either all of them are in the DB afterwards, or none.
+	 * @param entries placed batch entries
+	 * @return
+	 */
+	private boolean db_add_scheduled_directories(List<BatchEntry> entries) {
+		System.out.println("(qm) db: Add " + entries.size() + " scheduled directories in one transaction.");
+		try {
+			_db.begin();
+			for (BatchEntry entry: entries) {
+				List<String> container_ids = new ArrayList<String>();
+				for (ContainerStatus status: entry.scheduled) {
+					container_ids.add(status.ContainerId);
+				}
+				System.out.println("(qm) db: Add scheduled directory: " + entry.db_path +
+						" (" + entry.spec.SpecId + ", " + container_ids.toString() + ")");
+				if (!db_insert_scheduled_directory(entry.db_path, entry.spec, container_ids)) {
+					_db.rollback();
 					return false;
-				} else { // init
-					//check if spec exists
-					String sql = "SELECT * FROM Specifications WHERE SpecId = '" + spec.SpecId + "';";
-					ResultSet rs = stmt.executeQuery(sql);
-					if (rs.next()) {
-						//update specification
-						db_update_spec(spec, false);
-					} else {
-						//insert new specification
-						sql = "INSERT INTO Specifications VALUES (" + spec.to_sql_string() + ");";
-						stmt.executeUpdate(sql);
-					}
-					for (int i = 0; i < scheduled_container_ids.size(); i++) {
-						//update container reserved size
-						String con_storagereserved = "SELECT StorageReserved FROM Containers WHERE ContainerId = '"
-								+ scheduled_container_ids.get(i) + "';";
-						ResultSet con_reserved = stmt.executeQuery(con_storagereserved);
-						int container_storagereserved = con_reserved.getInt(1) + spec.ReservedSize;
-						String sql_update_rstorage = "UPDATE Containers SET StorageReserved = " + container_storagereserved
-								+ " where ContainerID = '" + scheduled_container_ids.get(i) + "';";
-						stmt.executeUpdate(sql_update_rstorage);
-						//insert into relationships
-						if (i == 0) {
-							sql = "INSERT INTO Relationships VALUES ('" + mkdir_path + "','" + spec.SpecId + "', '" +scheduled_container_ids.get(0)+ "' ,"
-									+ 1 + "," + 0 + "," + i + ");";
-						} else if (i == 1) {
-							sql = "INSERT INTO Relationships VALUES ('" + mkdir_path + "','" + spec.SpecId + "', '" +scheduled_container_ids.get(i)+ "' ,"
-									+ 0 + "," + 1 + "," + i + ");";
-						} else {
-							sql = "INSERT INTO Relationships VALUES ('" + mkdir_path + "','" + spec.SpecId + "', '" +scheduled_container_ids.get(i)+ "' ,"
-									+ 0 + "," + 0 + "," + i + ");";
-						}
-						stmt.executeUpdate(sql);
-					}
 				}
 			}
-			stmt.close();
-			conn.close();
+			_db.commit();
 		} catch (Exception e) {
 			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			_db.rollback();
 			return false;
 		}
 		return true;
@@ -1373,42 +2922,29 @@ public class QosManagerTool extends BaseGridTool
 	private boolean db_remove_spec(String spec_id) {
 		assert(spec_id != null);
 		System.out.println("(qm) db: Remove specification: " + spec_id);
-		Connection conn = null;
-		Statement stmt = null;
 
 		try {
-			Class.forName("org.sqlite.JDBC");
-			conn = DriverManager.getConnection("jdbc:sqlite:" + db_get_local_path());
-			stmt = conn.createStatement();
-
-			String sql = "SELECT ReservedSize FROM Specifications WHERE SpecId = '" + spec_id + "';";
-			ResultSet rs = stmt.executeQuery(sql);
+			_db.begin();
+			List<Integer> reserved = _db.query_ints(
+					"SELECT ReservedSize FROM Specifications WHERE SpecId = ?;", spec_id);
+
+			if (reserved.size() > 0) {
+				int spec_reserved = reserved.get(0);
+				List<String> container_ids = _db.query_strings(
+						"SELECT ContainerId FROM Relationships WHERE SpecId = ?;", spec_id);
+
+				for (String container_id: container_ids) {
+					_db.update("UPDATE Containers SET StorageReserved = StorageReserved - ? WHERE ContainerId = ?;",
+							spec_reserved, container_id);
+				}
 
-			if (rs.next()) {
-				int spec_reserved = rs.getInt(1);
-				sql = "SELECT ContainerId FROM Relationships WHERE SpecId = '" + spec_id + "';";
-				ResultSet rs_rel = stmt.executeQuery(sql);
-
-				while (rs_rel.next()) {
-					String container_id = rs_rel.getString(1);
-					sql = "SELECT StorageReserved FROM Containers WHERE ContainerId = '" + container_id + "';";
-					ResultSet rs_reserved = stmt.executeQuery(sql);
-					int storage_reserved = rs_reserved.getInt(1);
-					storage_reserved -= spec_reserved;
-					sql = "UPDATE Containers SET StorageReserved = " + storage_reserved
-							+ " WHERE ContainerId =" + "'" + container_id +"';";
-					stmt.executeUpdate(sql);
-				}
-
-				sql = "DELETE FROM Specifications WHERE SpecId = '" + spec_id + "';";
-				stmt.executeUpdate(sql);
-				sql = "DELETE FROM Relationships WHERE SpecId = '" + spec_id + "';";
-				stmt.executeUpdate(sql);
-			}
-			stmt.close();
-			conn.close();
+				_db.update("DELETE FROM Specifications WHERE SpecId = ?;", spec_id);
+				_db.update("DELETE FROM Relationships WHERE SpecId = ?;", spec_id);
+			}
+			_db.commit();
 		} catch (Exception e) {
 			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			_db.rollback();
 			return false;
 		}
 		return true;
@@ -1423,45 +2959,30 @@ public class QosManagerTool extends BaseGridTool
 	private boolean db_remove_directory(String dir) {
 		assert(dir != null);
 		System.out.println("(qm) db: Remove directory: " + dir);
-		Connection conn = null;
-		Statement stmt = null;
 		GeniiPath path = new GeniiPath(dir);
 		dir = "grid:" + path.lookupRNS();
 
 		try {
-			Class.forName("org.sqlite.JDBC");
-			conn = DriverManager.getConnection("jdbc:sqlite:" + db_get_local_path());
-			stmt = conn.createStatement();
-
 			List<String> spec_ids = db_rel_query(RelQuery.SPECS_RELATED_TO_DIR, dir);
 			if (spec_ids.size() == 0) {
 				System.out.println("(qm) db: No record for directory: " + dir);
-				stmt.close();
-				conn.close();
 				return true;
 			}
 			assert(spec_ids.size() == 1); // a directory should be only related to one spec
-			String sql = "SELECT ReservedSize FROM Specifications WHERE SpecId = '" + spec_ids.get(0) + "';";
-			ResultSet rs = stmt.executeQuery(sql);
-			int spec_reserved = rs.getInt(1);
+			_db.begin();
+			int spec_reserved = _db.query_int(
+					"SELECT ReservedSize FROM Specifications WHERE SpecId = ?;", spec_ids.get(0));
 			List<String> container_ids = db_rel_query(RelQuery.CONTAINERS_RELATED_TO_DIR, dir);
 			for (int i = 0; i < container_ids.size(); i++) {
-				sql = "SELECT StorageReserved FROM Containers WHERE ContainerId = '" + container_ids.get(i) + "';";
-				ResultSet rs_reserved = stmt.executeQuery(sql);
-				int storage_reserved = rs_reserved.getInt(1);
-				storage_reserved -= spec_reserved;
-				sql = "UPDATE Containers SET StorageReserved = " + storage_reserved
-							+ " WHERE ContainerId =" + "'" + container_ids.get(i) +"';";
-				stmt.executeUpdate(sql);
+				_db.update("UPDATE Containers SET StorageReserved = StorageReserved - ? WHERE ContainerId = ?;",
+						spec_reserved, container_ids.get(i));
 			}
 
-			sql = "DELETE FROM Relationships WHERE Directory = '" + dir + "';";
-			stmt.executeUpdate(sql);
-
-			stmt.close();
-			conn.close();
+			_db.update("DELETE FROM Relationships WHERE Directory = ?;", dir);
+			_db.commit();
 		} catch (Exception e) {
 			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			_db.rollback();
 			return false;
 		}
 		return true;
@@ -1476,26 +2997,17 @@ public class QosManagerTool extends BaseGridTool
 	private boolean db_remove_container(String container_id) {
 		assert(container_id != null);
 		System.out.println("(qm) db: Remove container: " + container_id);
-		Connection conn = null;
-		Statement stmt = null;
 
 		try {
-			Class.forName("org.sqlite.JDBC");
-			conn = DriverManager.getConnection("jdbc:sqlite:" + db_get_local_path());
-			stmt = conn.createStatement();
-
-			String sql = "SELECT * FROM Containers WHERE ContainerId = '" + container_id + "';";
-			ResultSet rs = stmt.executeQuery(sql);
-
-			if (rs.next()) {
-				sql = "SELECT ReplicaId FROM Relationships WHERE ContainerId = '" + container_id + "';";
-				ResultSet rs_rel = stmt.executeQuery(sql);
+			if (_db.exists("SELECT ContainerId FROM Containers WHERE ContainerId = ?;", container_id)) {
+				List<Integer> replica_ids = _db.query_ints(
+						"SELECT ReplicaId FROM Relationships WHERE ContainerId = ?;", container_id);
 
 				boolean has_replica = false;
 				boolean has_valid_replica = false;
-				while (rs_rel.next()) {
+				for (int replica_id: replica_ids) {
 					has_replica = true;
-					if (rs_rel.getInt(1) >= 0) has_valid_replica = true;
+					if (replica_id >= 0) has_valid_replica = true;
 				}
 
 				if (has_replica) {
@@ -1507,17 +3019,18 @@ public class QosManagerTool extends BaseGridTool
 						return true;
 					}
 				} else {
-					sql = "DELETE FROM Containers WHERE ContainerId = '" + container_id + "';";
-					stmt.executeUpdate(sql);
+					_db.begin();
+					_db.update("DELETE FROM Containers WHERE ContainerId = ?;", container_id);
+					_db.update("DELETE FROM ContainerHealth WHERE ContainerId = ?;", container_id);
+					_db.commit();
 				}
 
 			} else {
 				System.out.println("(qm) db: " + container_id + " does not exist in db.");
 			}
-			stmt.close();
-			conn.close();
 		} catch (Exception e) {
 			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			_db.rollback();
 			return false;
 		}
 		return true;
@@ -1547,8 +3060,6 @@ public class QosManagerTool extends BaseGridTool
 	private List<String> db_rel_query(RelQuery q, String id) {
 		assert(q != null && id != null);
 		Set<String> results = new HashSet<String>();
-		Connection conn = null;
-		Statement stmt = null;
 		if (q == RelQuery.SPECS_RELATED_TO_DIR || q == RelQuery.CONTAINERS_RELATED_TO_DIR) {
 			GeniiPath path = new GeniiPath(id);
 			id = "grid:" + path.lookupRNS();
@@ -1556,38 +3067,27 @@ public class QosManagerTool extends BaseGridTool
 
 		String primary_container_id = null;
 		try {
-			Class.forName("org.sqlite.JDBC");
-			conn = DriverManager.getConnection("jdbc:sqlite:" + db_get_local_path());
-			stmt = conn.createStatement();
-
 			String sql = null;
 			if (q == RelQuery.SPECS_RELATED_TO_DIR) {
-				sql = "SELECT SpecId FROM Relationships WHERE Directory ='" + id + "';";
+				sql = "SELECT SpecId FROM Relationships WHERE Directory = ?;";
 			} else if (q == RelQuery.SPECS_RELATED_TO_CONTAINER) {
-				sql = "SELECT SpecId FROM Relationships WHERE ContainerId ='" + id + "';";
+				sql = "SELECT SpecId FROM Relationships WHERE ContainerId = ?;";
 			} else if (q == RelQuery.DIRS_RELATED_TO_SPEC) {
-				sql = "SELECT Directory FROM Relationships WHERE SpecId ='" + id + "';";
+				sql = "SELECT Directory FROM Relationships WHERE SpecId = ?;";
 			} else if (q == RelQuery.DIRS_RELATED_TO_CONTAINER) {
-				sql = "SELECT Directory FROM Relationships WHERE ContainerId ='" + id + "';";
+				sql = "SELECT Directory FROM Relationships WHERE ContainerId = ?;";
 			} else if (q == RelQuery.CONTAINERS_RELATED_TO_SPEC) {
-				sql = "SELECT ContainerId FROM Relationships WHERE SpecId ='" + id + "';";
+				sql = "SELECT ContainerId FROM Relationships WHERE SpecId = ?;";
 			} else if (q == RelQuery.CONTAINERS_RELATED_TO_DIR) {
 				// should always put the primary container in the first place
-				sql = "SELECT ContainerId FROM Relationships WHERE Directory ='" + id
-						+ "' AND ReplicaFlag = 1;";
-				ResultSet rs = stmt.executeQuery(sql);
-				if (rs.next()) {
-					primary_container_id = rs.getString(1);
+				List<String> primary = _db.query_strings(
+						"SELECT ContainerId FROM Relationships WHERE Directory = ? AND ReplicaFlag = 1;", id);
+				if (primary.size() > 0) {
+					primary_container_id = primary.get(0);
 				}
-				sql = "SELECT ContainerId FROM Relationships WHERE Directory ='" + id
-						+ "' AND ReplicaFlag >= 0;";
-			}
-			ResultSet rs = stmt.executeQuery(sql);
-			while (rs.next()) {
-				results.add(rs.getString(1));
+				sql = "SELECT ContainerId FROM Relationships WHERE Directory = ? AND ReplicaFlag >= 0;";
 			}
-			stmt.close();
-			conn.close();
+			results.addAll(_db.query_strings(sql, id));
 		} catch (Exception e) {
 			System.out.println(e.getClass().getName() + ": " + e.getMessage());
 			results.clear();
@@ -1617,21 +3117,8 @@ public class QosManagerTool extends BaseGridTool
 	private List<String> db_get_container_id_list() {
 		System.out.println("(qm) db: Get container id list. ");
 		List<String> container_ids = new ArrayList<String>();
-		Connection conn = null;
-		Statement stmt = null;
-
 		try {
-			Class.forName("org.sqlite.JDBC");
-			conn = DriverManager.getConnection("jdbc:sqlite:" + db_get_local_path());
-			stmt = conn.createStatement();
-
-			String sql = "SELECT ContainerId From Containers;";
-			ResultSet rs = stmt.executeQuery(sql);
-			while (rs.next()) {
-				container_ids.add(rs.getString(1));
-			}
-			stmt.close();
-			conn.close();
+			container_ids = _db.query_strings("SELECT ContainerId From Containers;");
 		} catch (Exception e) {
 			System.out.println(e.getClass().getName() + ": " + e.getMessage());
 			container_ids.clear();
@@ -1646,21 +3133,8 @@ public class QosManagerTool extends BaseGridTool
 	private List<String> db_get_spec_id_list() {
 		System.out.println("(qm) db: Get specification id list. ");
 		List<String> spec_ids = new ArrayList<String>();
-		Connection conn = null;
-		Statement stmt = null;
-
 		try {
-			Class.forName("org.sqlite.JDBC");
-			conn = DriverManager.getConnection("jdbc:sqlite:" + db_get_local_path());
-			stmt = conn.createStatement();
-
-			String sql = "SELECT SpecId From Specifications;";
-			ResultSet rs = stmt.executeQuery(sql);
-			while (rs.next()) {
-				spec_ids.add(rs.getString(1));
-			}
-			stmt.close();
-			conn.close();
+			spec_ids = _db.query_strings("SELECT SpecId From Specifications;");
 		} catch (Exception e) {
 			System.out.println(e.getClass().getName() + ": " + e.getMessage());
 			spec_ids.clear();
@@ -1675,24 +3149,43 @@ public class QosManagerTool extends BaseGridTool
 	private List<String> db_get_dir_list() {
 		System.out.println("(qm) db: Get directory list. ");
 		Set<String> dirs = new HashSet<String>();
-		Connection conn = null;
-		Statement stmt = null;
-
 		try {
-			Class.forName("org.sqlite.JDBC");
-			conn = DriverManager.getConnection("jdbc:sqlite:" + db_get_local_path());
-			stmt = conn.createStatement();
+			dirs.addAll(_db.query_strings("SELECT Directory From Relationships;"));
+		} catch (Exception e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			dirs.clear();
+		}
+		return new ArrayList<String>(dirs);
+	}
 
-			String sql = "SELECT Directory From Relationships;";
-			ResultSet rs = stmt.executeQuery(sql);
-			while (rs.next()) {
-				dirs.add(rs.getString(1));
+	/**
+	 * QoS DB: The directories a monitor pass has to check: those related to
+	 * a changed container or spec, those with a replica on an unavailable
+	 * container (they could not be rescheduled yet), and those that failed
+	 * in the last pass of this process.
+	 * @param changed_containers
+	 * @param changed_specs
+	 * @return
+	 */
+	private List<String> db_get_dirs_to_monitor(Set<String> changed_containers, Set<String> changed_specs) {
+		Set<String> dirs = new HashSet<String>();
+		for (String container_id: changed_containers) {
+			dirs.addAll(db_rel_query(RelQuery.DIRS_RELATED_TO_CONTAINER, container_id));
+		}
+		for (String spec_id: changed_specs) {
+			dirs.addAll(db_rel_query(RelQuery.DIRS_RELATED_TO_SPEC, spec_id));
+		}
+		try {
+			dirs.addAll(_db.query_strings("SELECT Directory FROM Relationships WHERE ReplicaFlag >= 0"
+					+ " AND ContainerId IN (SELECT ContainerId FROM Containers WHERE ContainerAvailability = 0);"));
+			for (String dir: _monitor_retry) {
+				// a directory may be gone from the DB since it failed
+				if (_db.exists("SELECT Directory FROM Relationships WHERE Directory = ?;", dir)) {
+					dirs.add(dir);
+				}
 			}
-			stmt.close();
-			conn.close();
 		} catch (Exception e) {
 			System.out.println(e.getClass().getName() + ": " + e.getMessage());
-			dirs.clear();
 		}
 		return new ArrayList<String>(dirs);
 	}
@@ -1705,21 +3198,12 @@ public class QosManagerTool extends BaseGridTool
 	private ContainerStatus db_get_status(String container_id) {
 		assert(container_id != null);
 		ContainerStatus status = null;
-		Connection conn = null;
-		Statement stmt = null;
-
 		try {
-			Class.forName("org.sqlite.JDBC");
-			conn = DriverManager.getConnection("jdbc:sqlite:" + db_get_local_path());
-			stmt = conn.createStatement();
-
-			String sql = "SELECT * FROM Containers WHERE ContainerId = '" + container_id + "';";
-			ResultSet rs = stmt.executeQuery(sql);
+			ResultSet rs = _db.query("SELECT * FROM Containers WHERE ContainerId = ?;", container_id);
 			if (rs.next()) {
 				status = new ContainerStatus(rs);
 			}
-			stmt.close();
-			conn.close();
+			rs.close();
 		} catch (Exception e) {
 			System.out.println(e.getClass().getName() + ": " + e.getMessage());
 			status = null;
@@ -1737,21 +3221,12 @@ public class QosManagerTool extends BaseGridTool
 	private QosSpec db_get_spec(String spec_id) {
 		assert(spec_id != null);
 		QosSpec spec = null;
-		Connection conn = null;
-		Statement stmt = null;
-
 		try {
-			Class.forName("org.sqlite.JDBC");
-			conn = DriverManager.getConnection("jdbc:sqlite:" + db_get_local_path());
-			stmt = conn.createStatement();
-
-			String sql = "SELECT * FROM Specifications WHERE SpecId = '" + spec_id + "';";
-			ResultSet rs = stmt.executeQuery(sql);
+			ResultSet rs = _db.query("SELECT * FROM Specifications WHERE SpecId = ?;", spec_id);
 			if (rs.next()) {
 				spec = new QosSpec(rs);
 			}
-			stmt.close();
-			conn.close();
+			rs.close();
 		} catch (Exception e) {
 			System.out.println(e.getClass().getName() + ": " + e.getMessage());
 			spec = null;
@@ -1769,22 +3244,13 @@ public class QosManagerTool extends BaseGridTool
 	private String db_get_container_id_from_rns(String container_rns) {
 		assert(container_rns != null);
 		String container_id = null;
-		Connection conn = null;
-		Statement stmt = null;
-
 		try {
-			Class.forName("org.sqlite.JDBC");
-			conn = DriverManager.getConnection("jdbc:sqlite:" + db_get_local_path());
-			stmt = conn.createStatement();
-
 			GeniiPath path = new GeniiPath(container_rns);
-			String sql = "SELECT ContainerId FROM Containers WHERE RnsPath = 'grid:" + path.lookupRNS() + "';";
-			ResultSet rs = stmt.executeQuery(sql);
-			if (rs.next()) {
-				container_id = rs.getString(1);
+			List<String> ids = _db.query_strings(
+					"SELECT ContainerId FROM Containers WHERE RnsPath = ?;", "grid:" + path.lookupRNS());
+			if (ids.size() > 0) {
+				container_id = ids.get(0);
 			}
-			stmt.close();
-			conn.close();
 		} catch (Exception e) {
 			System.out.println(e.getClass().getName() + ": " + e.getMessage());
 			container_id = null;
@@ -1795,88 +3261,68 @@ public class QosManagerTool extends BaseGridTool
 	}
 
 	/**
-	 * QoS DB: Given a directory, get all replica ids.
-	 * @param dir
-	 * @return
+	 * QoS DB: Get all unused replicas, those with a negative ReplicaId.
+	 * @return replica ids by directory
 	 */
-	private List<Integer> db_get_replica_ids_for_dir(String dir) {
-		assert(dir != null);
-		List<Integer> replica_ids = new ArrayList<Integer>();
-		Connection conn = null;
-		Statement stmt = null;
-
+	private Map<String, List<Integer>> db_get_unused_replicas() {
+		Map<String, List<Integer>> unused = new HashMap<String, List<Integer>>();
 		try {
-			Class.forName("org.sqlite.JDBC");
-			conn = DriverManager.getConnection("jdbc:sqlite:" + db_get_local_path());
-			stmt = conn.createStatement();
-
-			GeniiPath path = new GeniiPath(dir);
-			String sql = "SELECT ReplicaId FROM Relationships WHERE Directory = 'grid:" + path.lookupRNS().toString() + "';";
-			ResultSet rs = stmt.executeQuery(sql);
-			if (rs.next()) {
-				replica_ids.add(rs.getInt(1));
+			ResultSet rs = _db.query("SELECT Directory, ReplicaId FROM Relationships WHERE ReplicaId < 0;");
+			while (rs.next()) {
+				String dir = rs.getString(1);
+				List<Integer> replica_ids = unused.get(dir);
+				if (replica_ids == null) {
+					replica_ids = new ArrayList<Integer>();
+					unused.put(dir, replica_ids);
+				}
+				replica_ids.add(rs.getInt(2));
 			}
-			stmt.close();
-			conn.close();
+			rs.close();
 		} catch (Exception e) {
 			System.out.println(e.getClass().getName() + ": " + e.getMessage());
-			replica_ids.clear();
+			unused.clear();
 		}
-
-		return replica_ids;
+		return unused;
 	}
 
 	/**
-	 * QoS DB: Given a directory and a replica ID, remove the record in DB.
-	 * @param dir
+	 * QoS DB: Remove the records of destroyed replicas, in one transaction.
+	 * @param removed replica ids by directory, as stored in the DB
 	 * @return
 	 */
-	private boolean db_remove_replica_for_dir(String dir, int replica_id) {
-		assert(dir != null);
-		Connection conn = null;
-		Statement stmt = null;
-
+	private boolean db_remove_replicas(Map<String, List<Integer>> removed) {
+		if (removed.isEmpty()) return true;
 		try {
-			Class.forName("org.sqlite.JDBC");
-			conn = DriverManager.getConnection("jdbc:sqlite:" + db_get_local_path());
-			stmt = conn.createStatement();
-
-			GeniiPath path = new GeniiPath(dir);
-			dir = path.lookupRNS().toString();
-
-			// If the replica server is also the resolver server, then only
-			// set the ReplicaFlag to -1.
-			String sql = "SELECT * FROM Relationships WHERE Directory = 'grid:" + dir + "' AND ResolverFlag = 1;";
-			ResultSet rs = stmt.executeQuery(sql);
-			if (rs.next()) {
-				int resolver_replicaFlag = rs.getInt(4);
-				int resolver_replicaId = rs.getInt(6);
-				if (resolver_replicaId == replica_id) {
-					if (resolver_replicaFlag >= 0) {
-						sql = "UPDATE Relationships SET ReplicaFlag = -1 " +
-								" WHERE Directory = 'grid:" + dir + "' AND ReplicaId = " + replica_id + ";";
-						stmt.executeUpdate(sql);
-						sql = "UPDATE Relationships SET ReplicaId = 9999 " +
-								" WHERE Directory = 'grid:" + dir + "' AND ReplicaId = " + replica_id + ";";
-						stmt.executeUpdate(sql);
+			_db.begin();
+			for (Map.Entry<String, List<Integer>> entry: removed.entrySet()) {
+				String dir = entry.getKey();
+				// If the replica server is also the resolver server, then only
+				// set the ReplicaFlag to -1.
+				ResultSet rs = _db.query("SELECT ReplicaFlag, ReplicaId FROM Relationships"
+						+ " WHERE Directory = ? AND ResolverFlag = 1;", dir);
+				boolean has_resolver = rs.next();
+				int resolver_replicaFlag = has_resolver ? rs.getInt(1) : 0;
+				int resolver_replicaId = has_resolver ? rs.getInt(2) : 0;
+				rs.close();
+				for (int replica_id: entry.getValue()) {
+					if (has_resolver && resolver_replicaId == replica_id) {
+						if (resolver_replicaFlag >= 0) {
+							_db.update("UPDATE Relationships SET ReplicaFlag = -1, ReplicaId = 9999"
+									+ " WHERE Directory = ? AND ReplicaId = ?;", dir, replica_id);
+						} else {
+							// do not delete
+						}
 					} else {
-						// do not delete
+						_db.update("DELETE FROM Relationships WHERE Directory = ? AND ReplicaId = ?;", dir, replica_id);
 					}
-				} else {
-					sql = "DELETE FROM Relationships WHERE Directory = 'grid:" + dir + "' AND ReplicaId = " + replica_id + ";";
-					stmt.executeUpdate(sql);
 				}
-			} else {
-				sql = "DELETE FROM Relationships WHERE Directory = 'grid:" + dir + "' AND ReplicaId = " + replica_id + ";";
-				stmt.executeUpdate(sql);
 			}
-			stmt.close();
-			conn.close();
+			_db.commit();
 		} catch (Exception e) {
 			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			_db.rollback();
 			return false;
 		}
-
 		return true;
 	}
 
@@ -1888,6 +3334,7 @@ public class QosManagerTool extends BaseGridTool
 		// Starts from an empty local db
 		String db_local_path = db_get_local_path();
 		if (db_local_path == null) return;
+		_db.close();
 		File dbFileLocal = new File(db_local_path);
 		if (dbFileLocal.exists()) {
 			dbFileLocal.delete();
@@ -2011,20 +3458,26 @@ public class QosManagerTool extends BaseGridTool
 
 	/**
 	 * Parse the availability and reliability. Add a leading 0 to an integer
-	 * to get a double value.
+	 * to get a double value. Both n and the power of ten are exact doubles,
+	 * so the division gives the same correctly rounded value as parsing the
+	 * string "0." + n, without building the string.
 	 * @param n
 	 * @return
 	 */
 	private double parse_leading_zero(int n) {
-		String s;
-		if (n >= 0) {
-			s = "0." + Integer.toString(n);
-		} else {
-			s = "-0." + Integer.toString(-n);
+		long m = Math.abs((long) n);
+		int digits = 1;
+		for (long t = m; t >= 10; t /= 10) {
+			digits++;
 		}
-		return Double.parseDouble(s);
+		double value = m / POWERS_OF_TEN[digits];
+		return n >= 0 ? value : -value;
 	}
 
+	static final private double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10
+	};
+
 	/**
 	 * QoS Checker: Check reliability.
 	 * Rule: All container together should satisfy the spec.
@@ -2193,60 +3646,642 @@ public class QosManagerTool extends BaseGridTool
 			if (verbose) System.out.println("(qm) checker: Availability [not satisfied] for spec: " + spec.SpecId);
 			return false;
 		}
-		return true;
+		return true;
+	}
+
+	/**
+	 * QoS Checker: Check if a list of container can satisfy a spec
+	 * @param spec
+	 * @param status_list
+	 * @return
+	 */
+	private boolean check_qos(QosSpec spec, List<ContainerStatus> status_list, boolean verbose) {
+		List<String> container_ids = new ArrayList<String>();
+		if (verbose) {
+			for (int i = 0; i < status_list.size(); i++) {
+				container_ids.add(status_list.get(i).ContainerId);
+			}
+			System.out.println("(qm) checker: Check satisfiability of spec "
+					+ spec.SpecId + " on containers " + container_ids.toString());
+		}
+		if (status_list.size() == 0) return false;
+
+		// filter out containers with availability = 0
+		for (int i = status_list.size() - 1; i >= 0; i--) {
+			if (status_list.get(i).ContainerAvailability <= 0) {
+				status_list.remove(i);
+			}
+		}
+
+		if (!check_each(spec, status_list, verbose)) return false;
+		if (!check_all(spec, status_list, verbose)) return false;
+		if (!check_first(spec, status_list, verbose)) return false;
+
+		if (verbose) {
+			System.out.println("(qm) checker: Spec " + spec.SpecId + " is [satisfied] on " + container_ids.toString());
+		}
+		return true;
+	}
+
+	/**************************************************************************
+	 *  QoS Scheduler
+	 **************************************************************************/
+
+	/**
+	 * QoS Scheduler: Schedule filter: filter out some single containers
+	 * @param spec
+	 * @param status
+	 * @return
+	 */
+	boolean schedule_filter(QosSpec spec, ContainerStatus status) {
+		if (status.ContainerAvailability <= 0) return false;
+		if (status.StorageReliability <= 0) return false;
+		List<ContainerStatus> tmp = new ArrayList<ContainerStatus>();
+		tmp.add(status);
+		if (!check_each(spec, tmp, false)) return false;
+		return true;
+	}
+
+	/**
+	 * QoS Scheduler: An immutable snapshot of container statuses for the
+	 * scheduler. The fields the checker needs are decoded once into primitive
+	 * arrays indexed by slot, so the search loops neither parse nor allocate.
+	 */
+	private class ContainerSnapshot
+	{
+		public final int size;
+		public final ContainerStatus[] status; // to map slots back to containers
+		public final double[] fail_r;          // 1 - reliability
+		public final double[] fail_a;          // 1 - availability
+		public final double[] log_fail_r;      // log(1 - reliability)
+		public final double[] log_fail_a;      // log(1 - availability)
+		public final int[] free_space;         // MB, total - used
+		public final double[] free_rbw;        // MB/s, max - dynamic
+		public final double[] free_wbw;        // MB/s, max - dynamic
+		public final double[] cost;            // per GB per month
+
+		public ContainerSnapshot(List<ContainerStatus> status_list) {
+			this(status_list.toArray(new ContainerStatus[status_list.size()]));
+		}
+
+		private ContainerSnapshot(ContainerStatus[] status) {
+			size = status.length;
+			this.status = status;
+			fail_r = new double[size];
+			fail_a = new double[size];
+			log_fail_r = new double[size];
+			log_fail_a = new double[size];
+			free_space = new int[size];
+			free_rbw = new double[size];
+			free_wbw = new double[size];
+			cost = new double[size];
+			for (int i = 0; i < size; i++) {
+				ContainerStatus c = status[i];
+				fail_r[i] = 1 - parse_leading_zero(c.StorageReliability);
+				fail_a[i] = 1 - parse_leading_zero(c.ContainerAvailability);
+				log_fail_r[i] = Math.log(fail_r[i]);
+				log_fail_a[i] = Math.log(fail_a[i]);
+				free_space[i] = c.StorageTotal - c.StorageUsed;
+				free_rbw[i] = c.StorageRBW - c.StorageRBW_dyn;
+				free_wbw[i] = c.StorageWBW - c.StorageWBW_dyn;
+				cost[i] = c.CostPerGBMonth;
+			}
+		}
+
+		/**
+		 * A copy of the snapshot with slot i holding slot order[i] of this one.
+		 * @param order
+		 * @return
+		 */
+		public ContainerSnapshot permute(int[] order) {
+			ContainerStatus[] permuted = new ContainerStatus[size];
+			for (int i = 0; i < size; i++) {
+				permuted[i] = status[order[i]];
+			}
+			return new ContainerSnapshot(permuted);
+		}
+
+		/**
+		 * The same rule as check_first, for a single container slot.
+		 * @param spec
+		 * @param slot
+		 * @return
+		 */
+		public boolean check_first(QosSpec spec, int slot) {
+			List<ContainerStatus> tmp = new ArrayList<ContainerStatus>(1);
+			tmp.add(status[slot]);
+			return QosManagerTool.this.check_first(spec, tmp, false);
+		}
+
+		/**
+		 * The same rule as check_all, for the first k slots in the array.
+		 * Failures are multiplied in the same order as check_all would.
+		 * @param spec
+		 * @param slots
+		 * @param k
+		 * @return
+		 */
+		public boolean check_all(QosSpec spec, int[] slots, int k) {
+			double container_failure = 1.0;
+			double container_unavailable = 1.0;
+			for (int i = 0; i < k; i++) {
+				container_failure = container_failure * fail_r[slots[i]];
+				container_unavailable = container_unavailable * fail_a[slots[i]];
+			}
+			return 1 - container_failure >= parse_leading_zero(spec.Reliability)
+					&& 1 - container_unavailable >= parse_leading_zero(spec.Availability);
+		}
+
+		public List<ContainerStatus> to_list(int[] slots, int k) {
+			List<ContainerStatus> result = new ArrayList<ContainerStatus>(k);
+			for (int i = 0; i < k; i++) {
+				result.add(status[slots[i]]);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * QoS Scheduler: A branch-and-bound search over candidate containers.
+	 * Candidates are sorted by their log-failure contribution, so the most
+	 * reliable and available containers are tried first. A branch is pruned
+	 * as soon as the best reachable reliability or availability cannot meet
+	 * the spec. Every result is confirmed with the check_all rule, and the
+	 * primary with check_first. check_each is per container and done by
+	 * schedule_filter.
+	 */
+	private class ScheduleSearch
+	{
+		// slack for the log-domain bounds, the exact check is done by check_all
+		private static final double BOUND_EPSILON = 1e-9;
+		// fewer candidates are searched on the calling thread
+		private static final int PARALLEL_THRESHOLD = 64;
+		// primaries searched sequentially by one fork/join task
+		private static final int PARALLEL_GRAIN = 4;
+
+		private QosSpec spec;
+		private ContainerSnapshot candidates; // sorted, best first
+		private int n;
+		private double[] suffix_min_r; // min of log_fail_r over [i, n)
+		private double[] suffix_min_a; // min of log_fail_a over [i, n)
+		private boolean[] first_ok;    // candidate can serve as the primary
+		private double target_r;       // log(1 - spec reliability)
+		private double target_a;       // log(1 - spec availability)
+
+		public ScheduleSearch(QosSpec spec, ContainerSnapshot snapshot) {
+			this.spec = spec;
+			this.n = snapshot.size;
+			final double[] key = new double[n];
+			List<Integer> order = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++) {
+				key[i] = snapshot.log_fail_r[i] + snapshot.log_fail_a[i];
+				order.add(i);
+			}
+			// stable sort, ties keep the DB order
+			Collections.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return Double.compare(key[a], key[b]);
+				}
+			});
+			int[] sorted = new int[n];
+			for (int i = 0; i < n; i++) {
+				sorted[i] = order.get(i);
+			}
+			candidates = snapshot.permute(sorted);
+
+			first_ok = new boolean[n];
+			for (int i = 0; i < n; i++) {
+				first_ok[i] = candidates.check_first(spec, i);
+			}
+			suffix_min_r = new double[n + 1];
+			suffix_min_a = new double[n + 1];
+			suffix_min_r[n] = Double.POSITIVE_INFINITY;
+			suffix_min_a[n] = Double.POSITIVE_INFINITY;
+			for (int i = n - 1; i >= 0; i--) {
+				suffix_min_r[i] = Math.min(candidates.log_fail_r[i], suffix_min_r[i + 1]);
+				suffix_min_a[i] = Math.min(candidates.log_fail_a[i], suffix_min_a[i + 1]);
+			}
+			target_r = Math.log(1 - parse_leading_zero(spec.Reliability));
+			target_a = Math.log(1 - parse_leading_zero(spec.Availability));
+		}
+
+		/**
+		 * Search for the smallest feasible set with min_k to max_k containers.
+		 * @param min_k
+		 * @param max_k
+		 * @return containers with the primary first, or null if none
+		 */
+		public List<ContainerStatus> search(int min_k, int max_k) {
+			if (max_k > n) max_k = n;
+			// even all candidates together cannot meet the spec
+			double all_r = 0, all_a = 0;
+			for (int i = 0; i < n; i++) {
+				all_r += candidates.log_fail_r[i];
+				all_a += candidates.log_fail_a[i];
+			}
+			if (all_r > target_r + BOUND_EPSILON || all_a > target_a + BOUND_EPSILON) return null;
+
+			boolean parallel = n >= PARALLEL_THRESHOLD && _schedule_pool.getParallelism() > 1;
+			int[] chosen = new int[Math.max(max_k, 1)];
+			for (int k = Math.max(min_k, 1); k <= max_k; k++) {
+				if (parallel) {
+					AtomicInteger winner = new AtomicInteger(n);
+					List<ContainerStatus> result = _schedule_pool.invoke(new PrimaryTask(0, n, k, winner));
+					if (result != null) return result;
+					continue;
+				}
+				for (int p = 0; p < n; p++) {
+					if (search_primary(p, k, chosen, null)) {
+						return candidates.to_list(chosen, k);
+					}
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * A fork/join task over a range of primaries for a given k. The
+		 * primaries are independent, so the range is split in halves. A worker
+		 * that finds a result lowers the shared winner, and every worker on a
+		 * higher primary then gives up. The lowest primary wins, the same as
+		 * in the sequential order.
+		 */
+		private class PrimaryTask extends RecursiveTask<List<ContainerStatus>>
+		{
+			private static final long serialVersionUID = 1L;
+
+			private int lo;
+			private int hi;
+			private int k;
+			private AtomicInteger winner;
+
+			public PrimaryTask(int lo, int hi, int k, AtomicInteger winner) {
+				this.lo = lo;
+				this.hi = hi;
+				this.k = k;
+				this.winner = winner;
+			}
+
+			@Override
+			protected List<ContainerStatus> compute() {
+				if (lo >= winner.get()) return null;
+				if (hi - lo <= PARALLEL_GRAIN) {
+					int[] chosen = new int[k];
+					for (int p = lo; p < hi && p < winner.get(); p++) {
+						if (search_primary(p, k, chosen, winner)) {
+							int w = winner.get();
+							while (p < w && !winner.compareAndSet(w, p)) {
+								w = winner.get();
+							}
+							return candidates.to_list(chosen, k);
+						}
+					}
+					return null;
+				}
+				int mid = (lo + hi) >>> 1;
+				PrimaryTask right = new PrimaryTask(mid, hi, k, winner);
+				right.fork();
+				List<ContainerStatus> left = new PrimaryTask(lo, mid, k, winner).compute();
+				List<ContainerStatus> right_result = right.join();
+				return left != null ? left : right_result;
+			}
+		}
+
+		/**
+		 * Search for k containers with candidate p as the primary.
+		 * @param p
+		 * @param k
+		 * @param chosen output, slots of the chosen candidates
+		 * @param winner if not null, give up once a lower primary has won
+		 * @return
+		 */
+		public boolean search_primary(int p, int k, int[] chosen, AtomicInteger winner) {
+			if (!first_ok[p]) return false;
+			chosen[0] = p;
+			return search_replicas(chosen, 1, k, 0,
+					candidates.log_fail_r[p], candidates.log_fail_a[p], winner);
+		}
+
+		private boolean search_replicas(int[] chosen, int depth, int k, int start,
+				double sum_r, double sum_a, AtomicInteger winner) {
+			if (depth == k) {
+				if (sum_r > target_r + BOUND_EPSILON || sum_a > target_a + BOUND_EPSILON) return false;
+				return candidates.check_all(spec, chosen, k);
+			}
+			int remaining = k - depth;
+			int primary = chosen[0];
+			if (winner != null && winner.get() < primary) return false;
+			for (int c = start; c < n; c++) {
+				if (c == primary) continue;
+				// not enough candidates left
+				int left = n - c - (primary > c ? 1 : 0);
+				if (left < remaining) break;
+				// bounds only get worse for larger c, since suffix minimums grow
+				if (sum_r + remaining * suffix_min_r[c] > target_r + BOUND_EPSILON) break;
+				if (sum_a + remaining * suffix_min_a[c] > target_a + BOUND_EPSILON) break;
+				chosen[depth] = c;
+				if (search_replicas(chosen, depth + 1, k, c + 1,
+						sum_r + candidates.log_fail_r[c], sum_a + candidates.log_fail_a[c], winner)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * QoS Scheduler: A search for the cheapest set of containers satisfying a
+	 * spec. It is a covering knapsack over the log(1 - reliability) and
+	 * log(1 - availability) budgets of the spec, discretized into a grid of
+	 * COST_GRID steps. Item values are rounded down, so a set that covers the
+	 * budgets on the grid also satisfies the spec, and the result is the
+	 * cheapest set up to the grid resolution. The DP state also counts
+	 * containers up to the minimum replica count, and tracks whether a
+	 * container that passes check_first is included to serve as the primary.
+	 */
+	private class CostSearch
+	{
+		private static final int COST_GRID = 64;
+
+		private QosSpec spec;
+		private ContainerSnapshot candidates;
+		private int min_k;
+
+		// a chosen container and the rest of the chosen set, shared between states
+		private class CostNode
+		{
+			public int item;
+			public CostNode prev;
+
+			public CostNode(int item, CostNode prev) {
+				this.item = item;
+				this.prev = prev;
+			}
+		}
+
+		public CostSearch(QosSpec spec, ContainerSnapshot snapshot, int min_k) {
+			this.spec = spec;
+			this.candidates = snapshot;
+			this.min_k = Math.max(min_k, 1);
+		}
+
+		/**
+		 * Search for the cheapest feasible set.
+		 * @return containers with the primary first, or null if none is found
+		 */
+		public List<ContainerStatus> search() {
+			int n = candidates.size;
+			if (n == 0) return null;
+			double demand_r = -Math.log(1 - parse_leading_zero(spec.Reliability));
+			double demand_a = -Math.log(1 - parse_leading_zero(spec.Availability));
+			int gr = demand_r > 0 ? COST_GRID + 1 : 1;
+			int ga = demand_a > 0 ? COST_GRID + 1 : 1;
+			int[] value_r = new int[n];
+			int[] value_a = new int[n];
+			boolean[] first_ok = new boolean[n];
+			for (int i = 0; i < n; i++) {
+				value_r[i] = grid_value(-candidates.log_fail_r[i], demand_r, gr);
+				value_a[i] = grid_value(-candidates.log_fail_a[i], demand_a, ga);
+				first_ok[i] = candidates.check_first(spec, i);
+			}
+
+			// state index = ((count * 2 + has_primary) * gr + r) * ga + a, which
+			// grows with every component, so a descending sweep adds each
+			// container at most once.
+			int states = (min_k + 1) * 2 * gr * ga;
+			double[] cost = new double[states];
+			CostNode[] chosen = new CostNode[states];
+			Arrays.fill(cost, Double.POSITIVE_INFINITY);
+			cost[0] = 0;
+			for (int i = 0; i < n; i++) {
+				double c_i = candidates.cost[i];
+				for (int s = states - 1; s >= 0; s--) {
+					if (cost[s] == Double.POSITIVE_INFINITY) continue;
+					int a = s % ga;
+					int r = (s / ga) % gr;
+					int f = (s / ga / gr) % 2;
+					int k = s / ga / gr / 2;
+					int a2 = Math.min(ga - 1, a + value_a[i]);
+					int r2 = Math.min(gr - 1, r + value_r[i]);
+					int f2 = (f == 1 || first_ok[i]) ? 1 : 0;
+					int k2 = Math.min(min_k, k + 1);
+					int s2 = ((k2 * 2 + f2) * gr + r2) * ga + a2;
+					if (s2 != s && cost[s] + c_i < cost[s2]) {
+						cost[s2] = cost[s] + c_i;
+						chosen[s2] = new CostNode(i, chosen[s]);
+					}
+				}
+			}
+
+			int goal = states - 1;
+			if (cost[goal] == Double.POSITIVE_INFINITY) return null;
+			List<Integer> items = new ArrayList<Integer>();
+			for (CostNode node = chosen[goal]; node != null; node = node.prev) {
+				items.add(node.item);
+			}
+			Collections.sort(items);
+			// the first container that can serve as the primary goes first
+			int[] slots = new int[items.size()];
+			int k = 0;
+			for (int i: items) {
+				if (first_ok[i]) {
+					slots[k++] = i;
+					break;
+				}
+			}
+			if (k == 0) return null;
+			for (int i: items) {
+				if (i != slots[0]) slots[k++] = i;
+			}
+			// confirm with the checker rules
+			if (!candidates.check_all(spec, slots, k)) return null;
+			return candidates.to_list(slots, k);
+		}
+
+		private int grid_value(double value, double demand, int grid) {
+			if (grid == 1) return 0;
+			double steps = Math.floor(value / (demand / COST_GRID));
+			return (int) Math.min(grid - 1, steps);
+		}
+	}
+
+	/**
+	 * QoS Scheduler: A search for the smallest repair of an existing
+	 * placement. The current containers that still pass schedule_filter are
+	 * kept, and the fewest other containers are added until the spec is
+	 * satisfied. Every added container receives a full copy of the directory,
+	 * so a repair moves UsedSize MB per added container, and the search
+	 * minimizes that volume first. Among repairs that move the same volume,
+	 * the most reliable and available containers are preferred, or the
+	 * cheapest ones with --optimize=cost.
+	 */
+	private class RepairSearch
+	{
+		// slack for the log-domain bounds, the exact check is done by check_all
+		private static final double BOUND_EPSILON = 1e-9;
+
+		private QosSpec spec;
+		private ContainerSnapshot candidates; // kept in the current order, then the others best first
+		private int kept;
+		private int n;
+		private boolean by_cost;
+		private double[] suffix_min_r; // min of log_fail_r over [i, n)
+		private double[] suffix_min_a; // min of log_fail_a over [i, n)
+		private boolean[] first_ok;    // candidate can serve as the primary
+		private double target_r;       // log(1 - spec reliability)
+		private double target_a;       // log(1 - spec availability)
+		private int[] best;            // best repair found for the current size
+		private double best_cost;
+
+		public RepairSearch(QosSpec spec, List<ContainerStatus> kept_list, List<ContainerStatus> others, boolean by_cost) {
+			this.spec = spec;
+			this.kept = kept_list.size();
+			this.by_cost = by_cost;
+			final ContainerSnapshot other_snapshot = new ContainerSnapshot(others);
+			List<Integer> order = new ArrayList<Integer>();
+			for (int i = 0; i < other_snapshot.size; i++) {
+				order.add(i);
+			}
+			// stable sort, ties keep the DB order
+			Collections.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return Double.compare(other_snapshot.log_fail_r[a] + other_snapshot.log_fail_a[a],
+							other_snapshot.log_fail_r[b] + other_snapshot.log_fail_a[b]);
+				}
+			});
+			List<ContainerStatus> all = new ArrayList<ContainerStatus>(kept_list);
+			for (int i: order) {
+				all.add(other_snapshot.status[i]);
+			}
+			candidates = new ContainerSnapshot(all);
+			n = candidates.size;
+
+			first_ok = new boolean[n];
+			for (int i = 0; i < n; i++) {
+				first_ok[i] = candidates.check_first(spec, i);
+			}
+			suffix_min_r = new double[n + 1];
+			suffix_min_a = new double[n + 1];
+			suffix_min_r[n] = Double.POSITIVE_INFINITY;
+			suffix_min_a[n] = Double.POSITIVE_INFINITY;
+			for (int i = n - 1; i >= 0; i--) {
+				suffix_min_r[i] = Math.min(candidates.log_fail_r[i], suffix_min_r[i + 1]);
+				suffix_min_a[i] = Math.min(candidates.log_fail_a[i], suffix_min_a[i + 1]);
+			}
+			target_r = Math.log(1 - parse_leading_zero(spec.Reliability));
+			target_a = Math.log(1 - parse_leading_zero(spec.Availability));
+		}
+
+		/**
+		 * Search for the repair that adds the fewest containers.
+		 * @param min_k the smallest total number of containers
+		 * @return containers with the primary first, or null if none
+		 */
+		public List<ContainerStatus> search(int min_k) {
+			double kept_r = 0, kept_a = 0;
+			int[] chosen = new int[Math.max(n, 1)];
+			for (int i = 0; i < kept; i++) {
+				chosen[i] = i;
+				kept_r += candidates.log_fail_r[i];
+				kept_a += candidates.log_fail_a[i];
+			}
+			for (int k = Math.max(Math.max(min_k, 1), kept); k <= n; k++) {
+				best = null;
+				best_cost = Double.POSITIVE_INFINITY;
+				search_added(chosen, kept, k, kept, kept_r, kept_a, 0);
+				if (best != null) return candidates.to_list(best, k);
+			}
+			return null;
+		}
+
+		private boolean search_added(int[] chosen, int depth, int k, int start,
+				double sum_r, double sum_a, double cost) {
+			if (by_cost && cost >= best_cost) return false;
+			if (depth == k) {
+				if (sum_r > target_r + BOUND_EPSILON || sum_a > target_a + BOUND_EPSILON) return false;
+				// the first container that can serve as the primary goes first,
+				// so a current primary that still qualifies stays the primary
+				int[] slots = new int[k];
+				int j = 0;
+				for (int i = 0; i < k; i++) {
+					if (first_ok[chosen[i]]) {
+						slots[j++] = chosen[i];
+						break;
+					}
+				}
+				if (j == 0) return false;
+				for (int i = 0; i < k; i++) {
+					if (chosen[i] != slots[0]) slots[j++] = chosen[i];
+				}
+				if (!candidates.check_all(spec, slots, k)) return false;
+				best = slots;
+				best_cost = cost;
+				// the first repair is the best one unless costs are compared
+				return !by_cost;
+			}
+			int remaining = k - depth;
+			for (int c = start; c <= n - remaining; c++) {
+				// bounds only get worse for larger c, since suffix minimums grow
+				if (sum_r + remaining * suffix_min_r[c] > target_r + BOUND_EPSILON) break;
+				if (sum_a + remaining * suffix_min_a[c] > target_a + BOUND_EPSILON) break;
+				chosen[depth] = c;
+				if (search_added(chosen, depth + 1, k, c + 1, sum_r + candidates.log_fail_r[c],
+						sum_a + candidates.log_fail_a[c], cost + candidates.cost[c])) {
+					return true;
+				}
+			}
+			return false;
+		}
 	}
 
 	/**
-	 * QoS Checker: Check if a list of container can satisfy a spec
+	 * QoS Scheduler: Search for a set of containers satisfying a spec.
+	 * The smallest replica count is preferred, starting from 2 replicas.
+	 * With --optimize=cost, the cheapest set is preferred instead.
 	 * @param spec
-	 * @param status_list
-	 * @return
+	 * @param status_list containers that pass schedule_filter
+	 * @return scheduled containers with the primary first, empty if none
 	 */
-	private boolean check_qos(QosSpec spec, List<ContainerStatus> status_list, boolean verbose) {
-		List<String> container_ids = new ArrayList<String>();
-		if (verbose) {
-			for (int i = 0; i < status_list.size(); i++) {
-				container_ids.add(status_list.get(i).ContainerId);
+	private List<ContainerStatus> schedule_search(QosSpec spec, List<ContainerStatus> status_list) {
+		List<ContainerStatus> result = null;
+		ContainerSnapshot snapshot = new ContainerSnapshot(status_list);
+		if ("cost".equals(_optimize)) {
+			CostSearch cost_search = new CostSearch(spec, snapshot, _min_replicas);
+			result = cost_search.search();
+			if (result == null) {
+				// the grid may be too coarse for sets right at the spec boundary
+				System.out.println("(qm) scheduler: No cost-optimal set found, fall back to the first feasible set.");
 			}
-			System.out.println("(qm) checker: Check satisfiability of spec "
-					+ spec.SpecId + " on containers " + container_ids.toString());
 		}
-		if (status_list.size() == 0) return false;
-
-		// filter out containers with availability = 0
-		for (int i = status_list.size() - 1; i >= 0; i--) {
-			if (status_list.get(i).ContainerAvailability <= 0) {
-				status_list.remove(i);
-			}
+		if (result == null) {
+			ScheduleSearch search = new ScheduleSearch(spec, snapshot);
+			result = search.search(_min_replicas, status_list.size());
 		}
-
-		if (!check_each(spec, status_list, verbose)) return false;
-		if (!check_all(spec, status_list, verbose)) return false;
-		if (!check_first(spec, status_list, verbose)) return false;
-
-		if (verbose) {
-			System.out.println("(qm) checker: Spec " + spec.SpecId + " is [satisfied] on " + container_ids.toString());
+		if (result == null) {
+			return new ArrayList<ContainerStatus>();
 		}
-		return true;
+		return result;
 	}
 
-	/**************************************************************************
-	 *  QoS Scheduler
-	 **************************************************************************/
-
 	/**
-	 * QoS Scheduler: Schedule filter: filter out some single containers
+	 * QoS Scheduler: Filter and search over a list of container statuses.
+	 * Does not touch the QoS DB.
 	 * @param spec
-	 * @param status
-	 * @return
+	 * @param all_status
+	 * @return scheduled containers with the primary first, or an empty list
 	 */
-	boolean schedule_filter(QosSpec spec, ContainerStatus status) {
-		if (status.ContainerAvailability <= 0) return false;
-		if (status.StorageReliability <= 0) return false;
-		List<ContainerStatus> tmp = new ArrayList<ContainerStatus>();
-		tmp.add(status);
-		if (!check_each(spec, tmp, false)) return false;
-		return true;
+	private List<ContainerStatus> schedule_containers(QosSpec spec, List<ContainerStatus> all_status) {
+		List<ContainerStatus> status_list = new ArrayList<ContainerStatus>();
+		// filter out some containers
+		for (int i = 0; i < all_status.size(); i++) {
+			ContainerStatus status = all_status.get(i);
+			if (schedule_filter(spec, status)) {
+				status_list.add(status);
+			}
+		}
+		return schedule_search(spec, status_list);
 	}
 
 	/**
@@ -2271,92 +4306,12 @@ public class QosManagerTool extends BaseGridTool
 			return scheduled_containers;
 		}
 		List<String> container_ids = db_get_container_id_list();
-		List<ContainerStatus> status_list = new ArrayList<ContainerStatus>();
-		// filter out some containers
-		List<ContainerStatus> tmp = new ArrayList<ContainerStatus>();
+		List<ContainerStatus> all_status = new ArrayList<ContainerStatus>();
 		for (int i = 0; i < container_ids.size(); i++) {
-			ContainerStatus status = db_get_status(container_ids.get(i));
-			if (schedule_filter(spec, status)) {
-				status_list.add(status);
-			}
-		}
-		boolean scheduled = false;
-		// try a single container -- skip for now
-		//for (int i = 0; i < status_list.size(); i++) {
-		//	tmp.clear();
-		//	tmp.add(status_list.get(i));
-		//	if (check_qos(spec, tmp, false)) {
-		//		scheduled = true;
-		//		break;
-		//	}
-		//}
-		// try 2 containers
-		if (!scheduled) {
-			for (int i = 0; i < status_list.size(); i++) {
-				tmp.clear();
-				tmp.add(status_list.get(i));
-				if (!check_first(spec, tmp, false)) continue;
-				for (int j = 0; j < status_list.size(); j++) {
-					if (j == i) continue;
-					tmp.clear();
-					tmp.add(status_list.get(i));
-					tmp.add(status_list.get(j));
-					if (check_all(spec, tmp, false)) {
-						scheduled = true;
-						break;
-					}
-				}
-			}
-		}
-		// try 3 containers
-		if (!scheduled) {
-			for (int i = 0; i < status_list.size(); i++) {
-				tmp.clear();
-				tmp.add(status_list.get(i));
-				if (!check_first(spec, tmp, false)) continue;
-				for (int j = 0; j < status_list.size(); j++) {
-					if (j == i) continue;
-					for (int k = j + 1; k < status_list.size(); k++) {
-						if (k == i) continue;
-						tmp.clear();
-						tmp.add(status_list.get(i));
-						tmp.add(status_list.get(j));
-						tmp.add(status_list.get(k));
-						if (check_all(spec, tmp, false)) {
-							scheduled = true;
-							break;
-						}
-					}
-				}
-			}
-		}
-		// try 4 containers
-		if (!scheduled) {
-			for (int i = 0; i < status_list.size(); i++) {
-				tmp.clear();
-				tmp.add(status_list.get(i));
-				if (!check_first(spec, tmp, false)) continue;
-				for (int j = 0; j < status_list.size(); j++) {
-					if (j == i) continue;
-					for (int k = j + 1; k < status_list.size(); k++) {
-						if (k == i) continue;
-						for (int l = k + 1; l < status_list.size(); l++) {
-							if (l == i) continue;
-							tmp.clear();
-							tmp.add(status_list.get(i));
-							tmp.add(status_list.get(j));
-							tmp.add(status_list.get(k));
-							tmp.add(status_list.get(l));
-							if (check_all(spec, tmp, false)) {
-								scheduled = true;
-								break;
-							}
-						}
-					}
-				}
-			}
+			all_status.add(db_get_status(container_ids.get(i)));
 		}
-		if (scheduled) {
+		List<ContainerStatus> tmp = schedule_containers(spec, all_status);
+		if (!tmp.isEmpty()) {
 			double costs = 0;
 			for (ContainerStatus status: tmp) {
 				scheduled_containers.add(status.RnsPath);
@@ -2369,6 +4324,56 @@ public class QosManagerTool extends BaseGridTool
 		return scheduled_containers;
 	}
 
+	/**
+	 * QoS Scheduler: Reschedule a directory with the least data movement.
+	 * The current placement is repaired with RepairSearch, and only if that
+	 * fails is the directory scheduled from scratch.
+	 * @param spec
+	 * @param current_ids containers of the directory, primary first
+	 * @return scheduled containers with the primary first, or an empty list
+	 */
+	private List<ContainerStatus> schedule_repair(QosSpec spec, final List<String> current_ids) {
+		List<ContainerStatus> kept = new ArrayList<ContainerStatus>();
+		List<ContainerStatus> others = new ArrayList<ContainerStatus>();
+		for (String container_id: db_get_container_id_list()) {
+			ContainerStatus status = db_get_status(container_id);
+			if (!schedule_filter(spec, status)) continue;
+			if (current_ids.contains(container_id)) {
+				kept.add(status);
+			} else {
+				others.add(status);
+			}
+		}
+		// keep the current order, primary first
+		Collections.sort(kept, new Comparator<ContainerStatus>() {
+			@Override
+			public int compare(ContainerStatus a, ContainerStatus b) {
+				return Integer.compare(current_ids.indexOf(a.ContainerId), current_ids.indexOf(b.ContainerId));
+			}
+		});
+
+		RepairSearch search = new RepairSearch(spec, kept, others, "cost".equals(_optimize));
+		List<ContainerStatus> result = search.search(_min_replicas);
+		if (result == null) {
+			System.out.println("(qm) scheduler: No repair of " + current_ids.toString() + " found, schedule from scratch.");
+			List<ContainerStatus> status_list = new ArrayList<ContainerStatus>(kept);
+			status_list.addAll(others);
+			result = schedule_search(spec, status_list);
+		}
+		if (!result.isEmpty()) {
+			int added = 0;
+			double costs = 0;
+			for (ContainerStatus status: result) {
+				if (!current_ids.contains(status.ContainerId)) added++;
+				costs += status.CostPerGBMonth;
+			}
+			System.out.println("(qm) Repair adds " + added + " of " + result.size()
+					+ " containers, moving " + (long) added * spec.UsedSize + " MB.");
+			System.out.printf("(qm) Cost: $%.2f/month \n", costs / 1024.0 * spec.ReservedSize);
+		}
+		return result;
+	}
+
 	/**
 	 * QoS Scheduler: Wrapper for calling the QoS scheduler from other files.
 	 * @param spec_path
@@ -2388,6 +4393,8 @@ public class QosManagerTool extends BaseGridTool
 		if (succ) {
 			scheduled_containers = schedule_internal(spec_path, spec_id);
 		}
+		// the caller creates the directory before committing, keep no file open meanwhile
+		_db.close();
 		return scheduled_containers;
 	}
 
@@ -2422,20 +4429,327 @@ public class QosManagerTool extends BaseGridTool
 				succ = succ && db_sync_up();
 			}
 		}
-
+		// mkdir ends here, keep no file open in the shell
+		_db.close();
 		return succ;
 	}
 
+	/**
+	 * QoS Scheduler: One directory of a batch manifest.
+	 */
+	private class BatchEntry
+	{
+		public String target_path = null;          // directory to create
+		public String spec_path = null;            // spec file for the directory
+		public QosSpec spec = null;
+		public List<ContainerStatus> scheduled = null;
+		public String db_path = null;              // target path as stored in the DB
+		public String error = null;                // why the entry failed, null if placed
+	}
+
+	/**
+	 * QoS Scheduler: Read a batch manifest. Each line is a target directory
+	 * and a spec file separated by a comma; # starts a comment.
+	 * @param manifest_path
+	 * @return entries in manifest order, or null if the manifest is unusable
+	 */
+	private List<BatchEntry> batch_read_manifest(String manifest_path) {
+		char[] data = new char[ByteIOConstants.PREFERRED_SIMPLE_XFER_BLOCK_SIZE];
+		int read;
+		InputStream in = null;
+		InputStreamReader reader = null;
+		String manifest_str = "";
+
+		try {
+			GeniiPath path = new GeniiPath(manifest_path);
+			if (!path.exists())
+				throw new FileNotFoundException(String.format("Unable to find manifest file %s!", path));
+			if (!path.isFile())
+				throw new IOException(String.format("Manifest path %s is not a file!", path));
+
+			in = path.openInputStream();
+			reader = new InputStreamReader(in);
+			while ((read = reader.read(data, 0, data.length)) > 0) {
+				manifest_str += new String(data, 0, read);
+			}
+		} catch (IOException e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			return null;
+		} finally {
+			StreamUtils.close(reader);
+			StreamUtils.close(in);
+		}
+
+		List<BatchEntry> entries = new ArrayList<BatchEntry>();
+		Set<String> targets = new HashSet<String>();
+		String[] lines = manifest_str.split("\n");
+		for (int i = 0; i < lines.length; i++) {
+			String[] contents = lines[i].split("#");
+			if (contents.length == 0 || contents[0].trim().equals("")) continue;
+			String[] target_spec = contents[0].split(",");
+			if (target_spec.length != 2 || target_spec[0].trim().equals("") || target_spec[1].trim().equals("")) {
+				System.out.println("(qm) Error: manifest line " + (i + 1) + " should be: <target-dir>, <spec-path>");
+				return null;
+			}
+			BatchEntry entry = new BatchEntry();
+			entry.target_path = target_spec[0].trim();
+			entry.spec_path = target_spec[1].trim();
+			if (!targets.add(entry.target_path)) {
+				System.out.println("(qm) Error: manifest line " + (i + 1) + " repeats " + entry.target_path);
+				return null;
+			}
+			entries.add(entry);
+		}
+		return entries;
+	}
+
+	/**
+	 * QoS Scheduler: Schedule one batch entry against the capacity ledger and
+	 * create its directory, resolver and replicas. On success the reserved
+	 * space is booked in the ledger, so later entries do not overbook the
+	 * same containers. On failure entry.error is set and anything created is
+	 * removed again.
+	 * @param entry
+	 * @param ledger every container status, shared by the whole batch
+	 */
+	private void batch_place(BatchEntry entry, List<ContainerStatus> ledger) {
+		System.out.println("(qm) scheduler: Batch entry " + entry.target_path + " with spec " + entry.spec_path);
+		entry.spec = new QosSpec();
+		if (!entry.spec.read_from_file(entry.spec_path)) {
+			entry.error = "cannot read spec " + entry.spec_path;
+			return;
+		}
+		GeniiPath target = new GeniiPath(entry.target_path);
+		if (target.exists()) {
+			entry.error = "path already exists";
+			return;
+		}
+		List<ContainerStatus> scheduled = schedule_containers(entry.spec, ledger);
+		if (scheduled.isEmpty()) {
+			entry.error = "unable to schedule, no set of containers satisfies the spec";
+			return;
+		}
+		List<String> scheduled_rns = new ArrayList<String>();
+		for (ContainerStatus status: scheduled) {
+			scheduled_rns.add(status.RnsPath);
+		}
+		System.out.println("(qm) Schedule results: " + scheduled_rns.toString());
+
+		boolean created = false;
+		try {
+			List<String> paths = new ArrayList<String>();
+			paths.add(entry.target_path);
+			if (MkdirTool.makeDirectory(false, scheduled_rns.get(0), null, paths, stderr) != 0) {
+				entry.error = "cannot create directory";
+				return;
+			}
+			created = true;
+			String target_rns = target.lookupRNS().toString();
+			int err = 0;
+			if (scheduled_rns.size() > 1) {
+				// Create resolver
+				GeniiPath resolverPath = new GeniiPath(scheduled_rns.get(1));
+				System.out.println("(qm) scheduler: Create resolver on " + resolverPath.lookupRNS());
+				err = resolver_policy(target_rns, resolverPath.lookupRNS().toString(), true);
+				// Create replications
+				for (int i = 1; err == 0 && i < scheduled_rns.size(); i++) {
+					GeniiPath replicatePath = new GeniiPath(scheduled_rns.get(i));
+					System.out.println("(qm) scheduler: Create replication on " + replicatePath.lookupRNS());
+					err = replicate_policy(target_rns, replicatePath.lookupRNS().toString(), null);
+				}
+			}
+			if (err != 0) {
+				entry.error = "cannot create resolver or replicas";
+				batch_remove(entry);
+				return;
+			}
+			entry.db_path = "grid:" + target_rns;
+		} catch (Exception e) {
+			entry.error = e.getClass().getName() + ": " + e.getMessage();
+			if (created) batch_remove(entry);
+			return;
+		}
+
+		entry.scheduled = scheduled;
+		// book the space in the ledger, as the Containers table will not see
+		// it before the batch is committed
+		int booked = entry.spec.ReservedSize - entry.spec.UsedSize;
+		for (ContainerStatus status: scheduled) {
+			status.StorageUsed += booked;
+		}
+	}
+
+	/**
+	 * QoS Scheduler: Remove the directory of a batch entry.
+	 * @param entry
+	 */
+	private void batch_remove(BatchEntry entry) {
+		List<String> paths = new ArrayList<String>();
+		paths.add(entry.target_path);
+		try {
+			RmdirTool.removeDirectory(paths, stderr);
+		} catch (Exception e) {
+			System.out.println("(qm) Error: Cannot remove " + entry.target_path + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * QoS Scheduler: Schedule and create the directories of a batch manifest.
+	 * The QoS DB is synced down once, every spec is scheduled against one
+	 * in-memory capacity ledger, all placed directories are committed in one
+	 * transaction, and the DB is synced up once. A failed entry does not
+	 * stop the others; if the commit fails, no directory is kept.
+	 * @param manifest_path
+	 * @return true if every entry was placed and committed
+	 */
+	public boolean schedule_batch(String manifest_path) {
+		System.out.println("(qm) scheduler: Schedule a batch manifest " + manifest_path);
+		List<BatchEntry> entries = batch_read_manifest(manifest_path);
+		if (entries == null) return false;
+		if (entries.isEmpty()) {
+			System.out.println("(qm) scheduler: Empty manifest, nothing to schedule.");
+			return true;
+		}
+		if (!db_sync_down()) return false;
+
+		// the capacity ledger, loaded once for the whole batch
+		List<ContainerStatus> ledger = new ArrayList<ContainerStatus>();
+		List<String> container_ids = db_get_container_id_list();
+		for (int i = 0; i < container_ids.size(); i++) {
+			ledger.add(db_get_status(container_ids.get(i)));
+		}
+
+		List<BatchEntry> placed = new ArrayList<BatchEntry>();
+		for (BatchEntry entry: entries) {
+			batch_place(entry, ledger);
+			if (entry.error == null) placed.add(entry);
+		}
+
+		boolean succ = true;
+		if (!placed.isEmpty()) {
+			succ = db_add_scheduled_directories(placed) && db_sync_up();
+			if (!succ) {
+				for (BatchEntry entry: placed) {
+					entry.error = "cannot commit the batch to the QoS database";
+					batch_remove(entry);
+				}
+			}
+		}
+
+		int failed = 0;
+		for (BatchEntry entry: entries) {
+			if (entry.error == null) {
+				System.out.println("(qm) scheduler: [placed] " + entry.target_path);
+			} else {
+				System.out.println("(qm) scheduler: [failed] " + entry.target_path + ": " + entry.error);
+				failed++;
+			}
+		}
+		System.out.println("(qm) scheduler: Batch done, " + (entries.size() - failed)
+				+ " placed, " + failed + " failed.");
+		return succ && failed == 0;
+	}
+
 	/**************************************************************************
 	 *  QoS Monitors
 	 **************************************************************************/
 
+	/**
+	 * QoS Monitor: Results of RNS probes by path. A result is kept for
+	 * _probe_ttl seconds, or _probe_negative_ttl seconds if the probe failed.
+	 * Concurrent lookups of the same path share one probe, and wait for it
+	 * at most _monitor_timeout seconds. A probe that times out or is
+	 * cancelled is dropped, so the next lookup probes again.
+	 */
+	private class ProbeCache
+	{
+		private class Entry
+		{
+			final FutureTask<Boolean> probe;
+			volatile long expires = Long.MAX_VALUE; // ms, set when the probe is done
+
+			Entry(Callable<Boolean> probe) {
+				this.probe = new FutureTask<Boolean>(probe);
+			}
+		}
+
+		private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+		private final AtomicInteger hits = new AtomicInteger();
+		private final AtomicInteger misses = new AtomicInteger();
+
+		public boolean get(String key, Callable<Boolean> probe) {
+			while (true) {
+				Entry entry = entries.get(key);
+				if (entry != null && entry.expires < System.currentTimeMillis()) {
+					entries.remove(key, entry);
+					continue;
+				}
+				if (entry == null) {
+					Entry mine = new Entry(probe);
+					entry = entries.putIfAbsent(key, mine);
+					if (entry == null) {
+						misses.incrementAndGet();
+						mine.probe.run();
+						boolean result = result_of(key, mine);
+						if (Thread.currentThread().isInterrupted()) {
+							// cancelled by probe_containers, the result is not kept
+							entries.remove(key, mine);
+						} else {
+							mine.expires = System.currentTimeMillis()
+									+ (result ? _probe_ttl : _probe_negative_ttl) * 1000L;
+						}
+						return result;
+					}
+				}
+				hits.incrementAndGet();
+				return result_of(key, entry);
+			}
+		}
+
+		private boolean result_of(String key, Entry entry) {
+			try {
+				return entry.probe.get(_monitor_timeout, TimeUnit.SECONDS);
+			} catch (TimeoutException e) {
+				// the probe hangs, later lookups start a new one
+				entries.remove(key, entry);
+				System.out.println("(qm) monitor: Warning: Probe " + key + " did not finish in " + _monitor_timeout + " seconds.");
+				return false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				System.out.println(cause.getClass().getName() + ": " + cause.getMessage());
+				return false;
+			}
+		}
+
+		public void clear() {
+			entries.clear();
+			hits.set(0);
+			misses.set(0);
+		}
+
+		public String stats() {
+			return hits.get() + " hits, " + misses.get() + " misses";
+		}
+	}
+
 	/**
 	 * QoS Monitor: Check if the RNS is valid
 	 * @param rns_path
 	 * @return
 	 */
-	private boolean is_rns_valid(String rns_path) {
+	private boolean is_rns_valid(final String rns_path) {
+		return _probe_cache.get("valid:" + rns_path, new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return probe_rns_valid(rns_path);
+			}
+		});
+	}
+
+	private boolean probe_rns_valid(String rns_path) {
 		GeniiPath path = new GeniiPath(rns_path);
 		// should be a grid path
 		if (path.pathType() != GeniiPathType.Grid) {
@@ -2460,7 +4774,16 @@ public class QosManagerTool extends BaseGridTool
 	 * @param rns_path
 	 * @return
 	 */
-	private boolean is_rns_available(String rns_path) {
+	private boolean is_rns_available(final String rns_path) {
+		return _probe_cache.get("available:" + rns_path, new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return probe_rns_available(rns_path);
+			}
+		});
+	}
+
+	private boolean probe_rns_available(String rns_path) {
 		if (!is_rns_valid(rns_path)) {
 			return false;
 		}
@@ -2483,11 +4806,45 @@ public class QosManagerTool extends BaseGridTool
 	}
 
 	/**
-	 * QoS Monitor: Monitor if a directory's spec is satisfied.
+	 * QoS Monitor: A directory whose spec is violated, waiting in the
+	 * migration queue to be rescheduled.
+	 */
+	private class Migration
+	{
+		public String dir;
+		public QosSpec spec;
+		public List<String> container_ids; // current placement, primary first
+		public int live = 0; // replicas on available containers
+
+		public Migration(String dir, QosSpec spec, List<String> container_ids) {
+			this.dir = dir;
+			this.spec = spec;
+			this.container_ids = container_ids;
+		}
+	}
+
+	/**
+	 * QoS Monitor: An empty migration queue. The most endangered directory
+	 * comes first: the fewest live replicas, then the largest reservation.
+	 * @return
+	 */
+	private PriorityQueue<Migration> new_migration_queue() {
+		return new PriorityQueue<Migration>(16, new Comparator<Migration>() {
+			@Override
+			public int compare(Migration a, Migration b) {
+				if (a.live != b.live) return a.live < b.live ? -1 : 1;
+				return Integer.compare(b.spec.ReservedSize, a.spec.ReservedSize);
+			}
+		});
+	}
+
+	/**
+	 * QoS Monitor: Check if a directory's spec is satisfied.
 	 * @param dir
+	 * @param queue a violated directory is added here
 	 * @return
 	 */
-	private boolean monitor_directory(String dir) {
+	private boolean monitor_directory(String dir, PriorityQueue<Migration> queue) {
 		assert(dir != null);
 		GeniiPath path = new GeniiPath(dir);
 		dir = path.lookupRNS().toString();
@@ -2505,47 +4862,241 @@ public class QosManagerTool extends BaseGridTool
 			List<String> container_ids = db_rel_query(RelQuery.CONTAINERS_RELATED_TO_DIR, dir);
 			assert(spec_ids.size() == 1 && container_ids.size() > 0);
 
-			QosSpec spec = db_get_spec(spec_ids.get(0));
-			List<ContainerStatus> status_list = new ArrayList<ContainerStatus>();
-			for (int i = 0; i < container_ids.size(); i++) {
-				status_list.add(db_get_status(container_ids.get(i)));
+			QosSpec spec = db_get_spec(spec_ids.get(0));
+			// check_qos would judge the first live replica as the primary, so
+			// a dead primary is replaced first, whatever check_qos says
+			ContainerStatus primary = db_get_status(container_ids.get(0));
+			if ((primary == null || primary.ContainerAvailability <= 0)
+					&& promote_replica(dir, spec, container_ids)) {
+				container_ids = db_rel_query(RelQuery.CONTAINERS_RELATED_TO_DIR, dir);
+			}
+			List<ContainerStatus> status_list = new ArrayList<ContainerStatus>();
+			for (int i = 0; i < container_ids.size(); i++) {
+				status_list.add(db_get_status(container_ids.get(i)));
+			}
+			boolean satisfied = check_qos(spec, status_list, true);
+			if (!satisfied) {
+				Migration migration = new Migration(dir, spec, container_ids);
+				for (ContainerStatus status: status_list) {
+					if (status.ContainerAvailability != 0) migration.live++;
+				}
+				System.out.println("(qm) monitor: Queue directory for rescheduling: " + dir
+						+ " (" + migration.live + " live replicas)");
+				queue.add(migration);
+			}
+		} else {
+			// the directory may be deleted by the user, just clean the DB
+			succ = db_remove_directory(dir);
+		}
+		return succ;
+	}
+
+	/**
+	 * QoS Monitor: Fail over a directory whose primary is not available.
+	 * The first replica that satisfies the spec as the primary is promoted,
+	 * without a scheduler search or a copy. The RNS entry is pointed at that
+	 * replica first, and the DB only marks it primary if that worked, so
+	 * the two always agree on the container that serves the directory.
+	 * @param dir
+	 * @param spec
+	 * @param container_ids current placement, primary first
+	 * @return true if a replica is promoted
+	 */
+	private boolean promote_replica(String dir, QosSpec spec, List<String> container_ids) {
+		if (container_ids.size() < 2) return false;
+		ContainerStatus primary = db_get_status(container_ids.get(0));
+		if (primary != null && primary.ContainerAvailability > 0) return false;
+		for (int i = 1; i < container_ids.size(); i++) {
+			List<ContainerStatus> status_list = new ArrayList<ContainerStatus>();
+			status_list.add(db_get_status(container_ids.get(i)));
+			if (status_list.get(0).ContainerAvailability <= 0) continue;
+			for (int j = 0; j < container_ids.size(); j++) {
+				if (j != i) status_list.add(db_get_status(container_ids.get(j)));
+			}
+			if (!check_qos(spec, status_list, false)) continue;
+			EndpointReferenceType replica = replica_epr(dir, db_get_status(container_ids.get(i)));
+			if (replica == null) {
+				System.out.println("(qm) monitor: Warning: Cannot find the replica of " + dir + " on " + container_ids.get(i));
+				continue;
+			}
+			if (!relink_directory(dir, replica)) return false;
+			if (!db_promote_replica(dir, container_ids.get(0), container_ids.get(i))) return false;
+			System.out.println("(qm) monitor: Promote replica on " + container_ids.get(i)
+					+ " to primary of " + dir + ", replacing " + container_ids.get(0));
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * QoS Monitor: The EPR of the replica of a directory on a container. The
+	 * resolver's own pick is taken if it is on that container, as it has the
+	 * resolver embedded; otherwise the replica is picked from the resolver's
+	 * entries by container_address.
+	 * @param dir
+	 * @param status the container
+	 * @return null if the resolver knows no replica on the container
+	 */
+	private EndpointReferenceType replica_epr(String dir, ContainerStatus status) {
+		if (status == null) return null;
+		try {
+			RNSPath current = RNSPath.getCurrent();
+			RNSPath container = current.lookup(new GeniiPath(status.RnsPath).lookupRNS().toString(), RNSPathQueryFlags.MUST_EXIST);
+			String address = container_address(container.getEndpoint());
+			EndpointReferenceType dir_epr = current.lookup(dir, RNSPathQueryFlags.MUST_EXIST).getEndpoint();
+			EndpointReferenceType resolved = ResolverUtils.resolve(dir_epr);
+			if (resolved != null && container_address(resolved).equals(address)) return resolved;
+			LookupResponseType entries = ResolverUtils.getEndpointEntries(dir_epr);
+			if (entries == null || entries.getEntryResponse() == null) return null;
+			for (RNSEntryResponseType entry: entries.getEntryResponse()) {
+				if (entry.getEndpoint() != null && container_address(entry.getEndpoint()).equals(address)) {
+					return entry.getEndpoint();
+				}
+			}
+		} catch (Throwable e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * QoS Monitor: Point the RNS entry of a directory at a replica, instead
+	 * of the failed primary.
+	 * @param dir
+	 * @param new_epr from replica_epr
+	 * @return
+	 */
+	private boolean relink_directory(String dir, EndpointReferenceType new_epr) {
+		try {
+			RNSPath current = RNSPath.getCurrent();
+			RNSPath dir_rns = current.lookup(dir, RNSPathQueryFlags.MUST_EXIST);
+			EndpointReferenceType old_epr = dir_rns.getEndpoint();
+			// keep a link to the old entry until the new one is in place,
+			// the same as destroyReplica
+			RNSPath temp_link = current.lookup(dir + "-warning-promotion-failed", RNSPathQueryFlags.MUST_NOT_EXIST);
+			temp_link.link(old_epr);
+			dir_rns.unlink();
+			dir_rns.link(new_epr);
+			temp_link.unlink();
+			CacheManager.removeItemFromCache(dir_rns.pwd(), EndpointReferenceType.class);
+		} catch (Throwable e) {
+			System.out.println("(qm) Error: Cannot relink " + dir + ": " + e.getClass().getName() + ": " + e.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * QoS Monitor: Reschedule the queued directories, most endangered first.
+	 * Every new replica makes the grid copy the directory to its container,
+	 * so at most _max_migrations copies run at a time, and a container takes
+	 * one copy after another at its StorageWBW. Copies are not observed;
+	 * their end is estimated from UsedSize and StorageWBW.
+	 * @param queue
+	 * @param wait wait for the copies to allow the rest, or leave the rest
+	 * @return directories that are not rescheduled
+	 */
+	private List<String> run_migrations(PriorityQueue<Migration> queue, boolean wait) {
+		List<String> pending = new ArrayList<String>();
+		while (!queue.isEmpty()) {
+			Migration migration = queue.poll();
+			System.out.println("(qm) monitor: Reschedule directory: " + migration.dir);
+			List<String> container_ids_new = new ArrayList<String>();
+			for (ContainerStatus status: schedule_repair(migration.spec, migration.container_ids)) {
+				container_ids_new.add(status.ContainerId);
+			}
+			System.out.println("(qm) monitor: Reschedule results: " + container_ids_new.toString());
+			if (container_ids_new.isEmpty()) {
+				System.out.println("(qm) monitor: Cannot reschedule " + migration.dir + ". Please add more available containers.");
+				pending.add(migration.dir);
+				continue;
 			}
-			boolean satisfied = check_qos(spec, status_list, true);
-			if (!satisfied) {
-				// reschedule
-				System.out.println("(qm) monitor: Reschedule directory: " + dir);
-				List<String> rescheduled_rns = schedule_internal(null, spec_ids.get(0));
-				// Convert RNS paths to container ids.
-				List<String> container_ids_new = new ArrayList<String>();
-				for (String rns: rescheduled_rns) {
-					String id = db_get_container_id_from_rns(rns);
-					if (id != null) {
-						container_ids_new.add(id);
-					} else {
-						System.out.println("(qm) Error: Cannnot lookup container ID for RNS " + rns);
-						return false;
-					}
-				}
 
-				System.out.println("(qm) monitor: Reschedule results: " + container_ids_new.toString());
-				if (container_ids_new.isEmpty()) {
-					System.out.println("(qm) monitor: Cannot reschedule " + dir + ". Please add more available containers.");
-					return false;
-				} else {
-					succ = db_add_scheduled_directory(dir, spec, container_ids_new, false); //update
+			// containers that receive a copy
+			List<String> targets = new ArrayList<String>(container_ids_new);
+			targets.removeAll(migration.container_ids);
+			long now = System.currentTimeMillis();
+			long start = migration_start_time(targets, now);
+			if (start > now) {
+				if (!wait) {
+					System.out.println("(qm) monitor: Defer " + migration.dir + ", copies are busy for "
+							+ (start - now) / 1000 + " s.");
+					pending.add(migration.dir);
+					continue;
 				}
+				System.out.println("(qm) monitor: Wait " + (start - now) / 1000 + " s for copies to finish.");
+				try {
+					Thread.sleep(start - now);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					pending.add(migration.dir);
+					break;
+				}
+				// schedule again, the containers may have changed meanwhile
+				queue.add(migration);
+				continue;
+			}
+
+			if (db_add_scheduled_directory(migration.dir, migration.spec, container_ids_new, false)) {
+				migration_book(targets, migration.spec.UsedSize, now);
+			} else {
+				pending.add(migration.dir);
 			}
 			try {
-				System.out.println("(qm) monitor: Replicas after monitoring: " + dir);
-				listReplicas(dir);
+				System.out.println("(qm) monitor: Replicas after monitoring: " + migration.dir);
+				listReplicas(migration.dir);
 			} catch (Exception e) {
 				System.out.println(e.getClass().getName() + ": " + e.getMessage());
 			}
-		} else {
-			// the directory may be deleted by the user, just clean the DB
-			succ = db_remove_directory(dir);
 		}
-		return succ;
+		for (Migration migration: queue) {
+			pending.add(migration.dir);
+		}
+		return pending;
+	}
+
+	/**
+	 * QoS Monitor: The earliest time a migration to the target containers
+	 * may start.
+	 * @param targets
+	 * @param now ms
+	 * @return ms
+	 */
+	private long migration_start_time(List<String> targets, long now) {
+		long start = now;
+		List<Long> running = new ArrayList<Long>();
+		for (long end: _migrations_in_flight) {
+			if (end > now) running.add(end);
+		}
+		_migrations_in_flight = running;
+		if (running.size() >= _max_migrations) {
+			Collections.sort(running);
+			start = running.get(running.size() - _max_migrations);
+		}
+		for (String container_id: targets) {
+			Long busy_until = _container_busy_until.get(container_id);
+			if (busy_until != null && busy_until > start) start = busy_until;
+		}
+		return start;
+	}
+
+	/**
+	 * QoS Monitor: Book the copies of a started migration.
+	 * @param targets
+	 * @param size MB to copy to each target
+	 * @param now ms
+	 */
+	private void migration_book(List<String> targets, int size, long now) {
+		long end = now;
+		for (String container_id: targets) {
+			ContainerStatus status = db_get_status(container_id);
+			long duration = (status != null && status.StorageWBW > 0) ? (long) (size / status.StorageWBW * 1000) : 0;
+			Long busy_until = _container_busy_until.get(container_id);
+			long done = Math.max(now, busy_until == null ? 0 : busy_until) + duration;
+			_container_busy_until.put(container_id, done);
+			end = Math.max(end, done);
+		}
+		_migrations_in_flight.add(end);
 	}
 
 	/**
@@ -2563,19 +5114,22 @@ public class QosManagerTool extends BaseGridTool
 
 		List<String> dirs = db_rel_query(RelQuery.DIRS_RELATED_TO_CONTAINER, container_id);
 		boolean succ = true;
+		PriorityQueue<Migration> queue = new_migration_queue();
 		for (int i = 0; i < dirs.size(); i++) {
-			succ = monitor_directory(dirs.get(i)) && succ;
+			succ = monitor_directory(dirs.get(i), queue) && succ;
 		}
-		return succ;
+		// the container is being removed, so wait for the copies instead of leaving directories behind
+		return run_migrations(queue, true).isEmpty() && succ;
 	}
 
 	/**
-	 * QoS Monitor: Update specs to qos database.
+	 * QoS Monitor: Update specs to qos database, if the spec file changed.
 	 * If reserved size is changed, all related containers are updated.
-	 * @param container_id
+	 * @param spec_id
+	 * @param changed the spec id is added here if any field changed, or null
 	 * @return
 	 */
-	private boolean update_spec(String spec_id) {
+	private boolean update_spec(String spec_id, Set<String> changed) {
 		assert(spec_id != null);
 		QosSpec spec_in_db = db_get_spec(spec_id);
 		assert(spec_in_db != null);
@@ -2587,15 +5141,18 @@ public class QosManagerTool extends BaseGridTool
 		} else {
 			// NOTE: allow users to change the spec ID?
 			assert(spec_remote.SpecId.equals(spec_in_db.SpecId));
+			List<String> fields = spec_remote.diff(spec_in_db);
+			if (fields.isEmpty()) return true;
+			System.out.println("(qm) monitor: Spec " + spec_id + " changed: " + fields);
+			if (changed != null) changed.add(spec_id);
 			if (spec_remote.ReservedSize != spec_in_db.ReservedSize) {
 				// Update reserved size of all related containers
 				List<String> dirs = db_rel_query(RelQuery.DIRS_RELATED_TO_SPEC, spec_id);
 				for (int i = 0; i < dirs.size(); i++) {
 					List<String> container_ids = db_rel_query(RelQuery.CONTAINERS_RELATED_TO_DIR, dirs.get(i));
-					ContainerStatus status = db_get_status(container_ids.get(i));
-					status.StorageReserved -= spec_in_db.ReservedSize;
-					status.StorageReserved += spec_remote.ReservedSize;
-					db_update_container(status, false); // update
+					for (String container_id: container_ids) {
+						db_update_reserved(container_id, spec_remote.ReservedSize - spec_in_db.ReservedSize);
+					}
 				}
 			}
 			db_update_spec(spec_remote, false); // update
@@ -2604,15 +5161,14 @@ public class QosManagerTool extends BaseGridTool
 	}
 
 	/**
-	 * QoS Monitor: Update status of a container to qos database.
-	 * This function will set the availability for further scheduling.
-	 * @param container_id
-	 * @return
+	 * QoS Monitor: Read the status of a container from its status file and
+	 * check its availability. Only the grid is accessed, so containers can
+	 * be probed in parallel.
+	 * @param status_in_db
+	 * @return the status to store
 	 */
-	private boolean update_container(String container_id) {
-		assert(container_id != null);
-		ContainerStatus status_in_db = db_get_status(container_id);
-		assert(status_in_db != null);
+	private ContainerStatus probe_container(ContainerStatus status_in_db) {
+		String container_id = status_in_db.ContainerId;
 		ContainerStatus status_remote = new ContainerStatus();
 		System.out.println("(qm) monitor: Read the status file of " + container_id + " from " + status_in_db.StatusPath);
 		boolean succ = status_remote.read_from_file(status_in_db.StatusPath);
@@ -2625,7 +5181,7 @@ public class QosManagerTool extends BaseGridTool
 			} else {
 				System.out.println("(qm) monitor: " + container_id + " is [available].");
 			}
-			db_update_container(status_in_db, false);
+			return status_in_db;
 		} else {
 			assert(status_remote.ContainerId.equals(status_in_db.ContainerId) &&
 					status_remote.RnsPath.equals(status_in_db.RnsPath));
@@ -2637,7 +5193,187 @@ public class QosManagerTool extends BaseGridTool
 			}
 			// Avoid overwriting the reserved size (container doesn't know this)
 			status_remote.StorageReserved = status_in_db.StorageReserved;
-			db_update_container(status_remote, false);
+			return status_remote;
+		}
+	}
+
+	/**
+	 * QoS Monitor: A probe_container run on a worker thread, in the calling
+	 * context of the tool.
+	 */
+	private class ProbeTask implements Callable<ContainerStatus>
+	{
+		private final ContainerStatus status_in_db;
+		private final ICallingContext context;
+		private volatile long started = 0; // ms, 0 while queued
+
+		public ProbeTask(ContainerStatus status_in_db, ICallingContext context) {
+			this.status_in_db = status_in_db;
+			this.context = context;
+		}
+
+		@Override
+		public ContainerStatus call() throws IOException {
+			started = System.currentTimeMillis();
+			Closeable assumed = ContextManager.temporarilyAssumeContext(context);
+			try {
+				return probe_container(status_in_db);
+			} finally {
+				StreamUtils.close(assumed);
+			}
+		}
+	}
+
+	/**
+	 * QoS Monitor: Update status of all containers in the qos database.
+	 * This function will set the availability for further scheduling. Up to
+	 * _monitor_threads containers are probed at a time; a container that
+	 * does not answer within _monitor_timeout seconds is not available. Only
+	 * the containers with changed fields are written, in one transaction.
+	 * A container that keeps failing is not probed for a while: its circuit
+	 * breaker opens for HEALTH_BACKOFF_MS, doubling with every failed probe
+	 * up to HEALTH_BACKOFF_MAX_MS, and then one probe decides (half-open).
+	 * @param container_ids
+	 * @param changed the ids of changed containers are added here
+	 * @return
+	 */
+	private boolean refresh_containers(List<String> container_ids, Set<String> changed) {
+		if (container_ids.isEmpty()) return true;
+		List<ContainerStatus> statuses = new ArrayList<ContainerStatus>();
+		List<ContainerStatus> skipped = new ArrayList<ContainerStatus>();
+		Map<String, long[]> health = db_get_health();
+		long now = System.currentTimeMillis();
+		for (String container_id: container_ids) {
+			ContainerStatus status_in_db = db_get_status(container_id);
+			assert(status_in_db != null);
+			long[] breaker = health.get(container_id);
+			if (breaker != null && now < breaker[1]) {
+				System.out.println("(qm) monitor: " + container_id + " is [not available], next probe in "
+						+ (breaker[1] - now) / 1000 + " s.");
+				status_in_db.ContainerAvailability = 0;
+				skipped.add(status_in_db);
+			} else {
+				statuses.add(status_in_db);
+			}
+		}
+		List<ContainerStatus> results = new ArrayList<ContainerStatus>();
+		if (!statuses.isEmpty() && !probe_containers(statuses, results)) return false;
+
+		Map<String, long[]> health_updates = new HashMap<String, long[]>();
+		now = System.currentTimeMillis();
+		for (ContainerStatus result: results) {
+			long[] breaker = health.get(result.ContainerId);
+			if (result.ContainerAvailability != 0) {
+				if (breaker != null) {
+					System.out.println("(qm) monitor: " + result.ContainerId + " has recovered.");
+					health_updates.put(result.ContainerId, null);
+				}
+			} else {
+				long failures = (breaker == null ? 0 : breaker[0]) + 1;
+				long backoff = Math.min(HEALTH_BACKOFF_MS << Math.min(failures - 1, 20), HEALTH_BACKOFF_MAX_MS);
+				System.out.println("(qm) monitor: " + result.ContainerId + " failed " + failures
+						+ " probes in a row, next probe in " + backoff / 1000 + " s.");
+				health_updates.put(result.ContainerId, new long[] { failures, now + backoff });
+			}
+		}
+		results.addAll(skipped);
+
+		List<ContainerStatus> updates = new ArrayList<ContainerStatus>();
+		for (ContainerStatus result: results) {
+			List<String> fields = result.diff(db_get_status(result.ContainerId));
+			if (!fields.isEmpty()) {
+				System.out.println("(qm) monitor: Container " + result.ContainerId + " changed: " + fields);
+				changed.add(result.ContainerId);
+				updates.add(result);
+			}
+		}
+		try {
+			_db.begin();
+			if (db_update_containers(updates) && db_update_health(health_updates)) {
+				_db.commit();
+				return true;
+			}
+		} catch (Exception e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+		}
+		_db.rollback();
+		return false;
+	}
+
+	/**
+	 * QoS Monitor: Run probe_container for the containers, up to
+	 * _monitor_threads at a time, each for at most _monitor_timeout seconds.
+	 * @param statuses
+	 * @param results the new statuses, in the same order
+	 * @return
+	 */
+	private boolean probe_containers(List<ContainerStatus> statuses, List<ContainerStatus> results) {
+		ICallingContext context;
+		try {
+			context = ContextManager.getExistingContext();
+		} catch (IOException e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			return false;
+		}
+		final long timeout = _monitor_timeout * 1000L;
+		final int threads = Math.min(_monitor_threads, statuses.size());
+		// a probe that ignores the interrupt keeps its thread, so queued
+		// probes are given up once every round could have timed out
+		final long pass_deadline = System.currentTimeMillis()
+				+ ((statuses.size() + threads - 1) / threads + 1) * timeout;
+		ExecutorService pool = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "qos-monitor");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		List<ProbeTask> tasks = new ArrayList<ProbeTask>();
+		List<Future<ContainerStatus>> futures = new ArrayList<Future<ContainerStatus>>();
+		for (ContainerStatus status: statuses) {
+			ProbeTask task = new ProbeTask(status, context);
+			tasks.add(task);
+			futures.add(pool.submit(task));
+		}
+
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				ContainerStatus status = statuses.get(i);
+				ContainerStatus result = null;
+				while (result == null) {
+					// the timeout runs from when the probe starts, not while it is queued
+					long started = tasks.get(i).started;
+					long wait = (started == 0 ? timeout : started + timeout - System.currentTimeMillis());
+					try {
+						result = futures.get(i).get(Math.max(wait, 1), TimeUnit.MILLISECONDS);
+					} catch (TimeoutException e) {
+						started = tasks.get(i).started;
+						long now = System.currentTimeMillis();
+						if (started != 0 && now >= started + timeout || started == 0 && now >= pass_deadline) {
+							futures.get(i).cancel(true);
+							System.out.println("(qm) monitor: Warning: " + status.ContainerId
+									+ " did not answer in " + _monitor_timeout + " s, [not available].");
+							// the probe may still be running on its copy
+							result = db_get_status(status.ContainerId);
+							result.ContainerAvailability = 0;
+						}
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+						System.out.println(cause.getClass().getName() + ": " + cause.getMessage());
+						System.out.println("(qm) monitor: Warning: " + status.ContainerId + " is [not available].");
+						status.ContainerAvailability = 0;
+						result = status;
+					}
+				}
+				results.add(result);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			pool.shutdownNow();
 		}
 		return true;
 	}
@@ -2648,22 +5384,391 @@ public class QosManagerTool extends BaseGridTool
 	 */
 	private boolean monitor_all() {
 		System.out.println("(qm) monitor: Monitor everything.");
+		// every pass probes each container once
+		_probe_cache.clear();
 		// Step 1: update all containers
+		Set<String> changed_containers = new HashSet<String>();
 		List<String> container_ids = db_get_container_id_list();
-		for (int i = 0; i < container_ids.size(); i++) {
-			update_container(container_ids.get(i));
-		}
+		refresh_containers(container_ids, changed_containers);
 		db_sync_up();
 		// Step 2: update all specs
+		Set<String> changed_specs = new HashSet<String>();
 		List<String> spec_ids = db_get_spec_id_list();
 		for (int i = 0; i < spec_ids.size(); i++) {
-			update_spec(spec_ids.get(i));
+			update_spec(spec_ids.get(i), changed_specs);
 		}
 		db_sync_up();
-		// Step 3: monitor all directories
-		List<String> dirs = db_get_dir_list();
+		// Step 3: monitor the directories that may be affected
+		List<String> dirs;
+		if (_monitor_full) {
+			dirs = db_get_dir_list();
+		} else {
+			dirs = db_get_dirs_to_monitor(changed_containers, changed_specs);
+			System.out.println("(qm) monitor: " + changed_containers.size() + " containers and "
+					+ changed_specs.size() + " specs changed, check " + dirs.size() + " directories.");
+		}
+		_monitor_retry.clear();
+		PriorityQueue<Migration> queue = new_migration_queue();
 		for (int i = 0; i < dirs.size(); i++) {
-			monitor_directory(dirs.get(i));
+			if (!monitor_directory(dirs.get(i), queue)) {
+				_monitor_retry.add(dirs.get(i));
+			}
+		}
+		// a daemon checks deferred directories again in its next pass; a
+		// single run has no next pass, so it waits for the copies instead
+		_monitor_retry.addAll(run_migrations(queue, !_daemon));
+		System.out.println("(qm) monitor: Probe cache: " + _probe_cache.stats() + ".");
+		return true;
+	}
+
+	/**
+	 * QoS Monitor: Run monitor_all every _daemon_interval seconds until the
+	 * tool is stopped. The local qos.db stays open between passes, and each
+	 * pass only fetches and ships the log segments that changed, so an idle
+	 * pass costs one small grid read besides the probes.
+	 * @return false if interrupted
+	 */
+	private boolean monitor_daemon() {
+		for (long pass = 1; ; pass++) {
+			long start = System.currentTimeMillis();
+			System.out.println("(qm) daemon: Monitor pass " + pass + ".");
+			try {
+				boolean succ = db_sync_down();
+				succ = succ && monitor_all();
+				succ = succ && db_sync_up();
+				if (!succ) {
+					System.out.println("(qm) daemon: Warning: Monitor pass " + pass + " failed, retry in the next pass.");
+				}
+			} catch (Exception e) {
+				// keep the daemon alive, the next pass starts from the grid again
+				// with a new connection, whatever transaction level failed
+				System.out.println(e.getClass().getName() + ": " + e.getMessage());
+				_db.close();
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			try {
+				Thread.sleep(Math.max(_daemon_interval * 1000L - elapsed, 0));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				System.out.println("(qm) daemon: Stopped.");
+				return false;
+			}
+		}
+	}
+
+	/**************************************************************************
+	 *  QoS Benchmarks
+	 **************************************************************************/
+
+	// containers in the synthetic populations
+	static final private int[] BENCH_SIZES = { 10, 100, 1000, 10000 };
+	// reliability and availability distributions of the populations
+	static final private String[] BENCH_DISTRIBUTIONS = { "uniform", "high", "bimodal", "sparse" };
+	// each case is repeated for at least this long, after one warm-up run
+	static final private long BENCH_MIN_NS = 200000000L;
+	static final private int BENCH_MIN_ITERATIONS = 3;
+	// the spec scheduled against the populations
+	static final private int BENCH_SPEC_RELIABILITY = 99999;
+	static final private int BENCH_SPEC_AVAILABILITY = 9999;
+	// scheduled directories in the synthetic QoS DB
+	static final private int BENCH_DB_DIRECTORIES = 20000;
+
+	/**
+	 * QoS Benchmark: One benchmark case. run() does one operation and
+	 * returns a result, so the JIT can not drop the work.
+	 */
+	private abstract class BenchCase
+	{
+		public String name;
+		public String distribution;
+		public int containers;
+
+		public BenchCase(String name, String distribution, int containers) {
+			this.name = name;
+			this.distribution = distribution;
+			this.containers = containers;
+		}
+
+		public abstract long run();
+	}
+
+	/**
+	 * QoS Benchmark: A reliability or availability drawn from a distribution,
+	 * as an int with presumed leading 0.
+	 * uniform: 0.90 to 0.99. high: 0.990 to 0.999.
+	 * bimodal: half 0.50 to 0.89, half 0.99.
+	 * sparse: mostly 0.10 to 0.89, one in twenty 0.9999.
+	 * @param distribution
+	 * @param rnd
+	 * @return
+	 */
+	private int bench_draw(String distribution, Random rnd) {
+		if (distribution.equals("high")) {
+			return 990 + rnd.nextInt(10);
+		} else if (distribution.equals("bimodal")) {
+			return rnd.nextBoolean() ? 50 + rnd.nextInt(40) : 99;
+		} else if (distribution.equals("sparse")) {
+			return rnd.nextInt(20) == 0 ? 9999 : 10 + rnd.nextInt(80);
+		} else {
+			return 90 + rnd.nextInt(10);
+		}
+	}
+
+	/**
+	 * QoS Benchmark: A synthetic container population, the stand-in for the
+	 * Containers table. About one in ten containers is full, so the filter
+	 * has something to drop.
+	 * @param n
+	 * @param distribution
+	 * @param rnd
+	 * @return
+	 */
+	private List<ContainerStatus> bench_population(int n, String distribution, Random rnd) {
+		List<ContainerStatus> population = new ArrayList<ContainerStatus>(n);
+		for (int i = 0; i < n; i++) {
+			ContainerStatus status = new ContainerStatus();
+			status.ContainerId = "bench-container" + i;
+			status.StorageTotal = 100000;
+			status.StorageUsed = rnd.nextInt(10) == 0 ? 100000 : rnd.nextInt(50000);
+			status.StorageRBW = 100.0;
+			status.StorageWBW = 100.0;
+			status.StorageReliability = bench_draw(distribution, rnd);
+			status.ContainerAvailability = bench_draw(distribution, rnd);
+			status.CostPerGBMonth = 0.01 * (1 + rnd.nextInt(100));
+			status.DataIntegrity = rnd.nextInt(1000000);
+			status.PhysicalLocation = "/US/VA/Charlottesville";
+			status.RnsPath = "containers/bench" + i;
+			population.add(status);
+		}
+		return population;
+	}
+
+	/**
+	 * QoS Benchmark: Bytes allocated so far by all live threads, so the
+	 * fork/join workers of the search are counted too. -1 if the JVM has no
+	 * allocation counters.
+	 */
+	private long bench_allocated_bytes() {
+		java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		if (!(mx instanceof com.sun.management.ThreadMXBean)) return -1;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) mx;
+		if (!threads.isThreadAllocatedMemoryEnabled()) return -1;
+		long total = 0;
+		for (long bytes: threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+			if (bytes > 0) total += bytes;
+		}
+		return total;
+	}
+
+	/**
+	 * QoS Benchmark: Run a case and format its result as a JSON object.
+	 * @param bench
+	 * @param ops operations done by one run()
+	 * @return
+	 */
+	private String bench_run(BenchCase bench, long ops) {
+		long result = bench.run(); // warm up
+		int iterations = 0;
+		long before = bench_allocated_bytes();
+		long start = System.nanoTime();
+		long elapsed = 0;
+		while (iterations < BENCH_MIN_ITERATIONS || elapsed < BENCH_MIN_NS) {
+			result += bench.run();
+			iterations++;
+			elapsed = System.nanoTime() - start;
+		}
+		long after = bench_allocated_bytes();
+		double total_ops = (double) iterations * ops;
+		String bytes_per_op = (before < 0 || after < 0) ? "null"
+				: String.format(Locale.ROOT, "%.1f", (after - before) / total_ops);
+		System.out.println(String.format("(qm) bench: %-16s %-8s %6d containers %12.1f ns/op",
+				bench.name, bench.distribution, bench.containers, elapsed / total_ops));
+		// JSON numbers always use a decimal point, whatever the default locale
+		return String.format(Locale.ROOT, "    {\"name\": \"%s\", \"distribution\": \"%s\", \"containers\": %d, "
+				+ "\"iterations\": %d, \"ops\": %d, \"ns_per_op\": %.1f, \"bytes_per_op\": %s, \"result\": %d}",
+				bench.name, bench.distribution, bench.containers,
+				iterations, (long) total_ops, elapsed / total_ops, bytes_per_op, result);
+	}
+
+	/**
+	 * QoS Benchmark: schedule_filter, check_qos and the scheduler, timed on
+	 * synthetic populations held in memory.
+	 * @return results as JSON objects
+	 */
+	private List<String> bench_scheduler() {
+		final QosSpec spec = new QosSpec();
+		spec.SpecId = "bench-spec";
+		spec.Reliability = BENCH_SPEC_RELIABILITY;
+		spec.Availability = BENCH_SPEC_AVAILABILITY;
+		spec.DataIntegrity = 100000;
+		String saved_optimize = _optimize;
+
+		List<String> results = new ArrayList<String>();
+		for (final String distribution: BENCH_DISTRIBUTIONS) {
+			for (final int n: BENCH_SIZES) {
+				final List<ContainerStatus> population = bench_population(n, distribution, new Random(n));
+				_optimize = null;
+				final List<ContainerStatus> scheduled = schedule_containers(spec, population);
+
+				results.add(bench_run(new BenchCase("schedule_filter", distribution, n) {
+					@Override
+					public long run() {
+						long passed = 0;
+						for (int i = 0; i < population.size(); i++) {
+							if (schedule_filter(spec, population.get(i))) passed++;
+						}
+						return passed;
+					}
+				}, n));
+				results.add(bench_run(new BenchCase("check_qos", distribution, n) {
+					@Override
+					public long run() {
+						// check_qos drops unavailable containers from its argument
+						List<ContainerStatus> tmp = new ArrayList<ContainerStatus>(scheduled);
+						return check_qos(spec, tmp, false) ? 1 : 0;
+					}
+				}, 1));
+				_optimize = null;
+				results.add(bench_run(new BenchCase("schedule", distribution, n) {
+					@Override
+					public long run() {
+						return schedule_containers(spec, population).size();
+					}
+				}, 1));
+				_optimize = "cost";
+				results.add(bench_run(new BenchCase("schedule_cost", distribution, n) {
+					@Override
+					public long run() {
+						return schedule_containers(spec, population).size();
+					}
+				}, 1));
+			}
+		}
+		_optimize = saved_optimize;
+		return results;
+	}
+
+	/**
+	 * QoS Benchmark: The relationship queries on a synthetic QoS DB, before
+	 * and after the schema migration. The DB is a temporary file, the local
+	 * qos.db is not touched.
+	 * @return results as JSON objects
+	 */
+	private List<String> bench_db() {
+		List<String> results = new ArrayList<String>();
+		final int containers = 200, specs = 500, directories = BENCH_DB_DIRECTORIES;
+		QosDb saved_db = _db;
+		File db_file = null;
+		try {
+			db_file = File.createTempFile("qos-bench", ".db");
+			_db = new QosDb(db_file.getPath());
+			if (!db_create_tables()) return results;
+
+			// every directory has a primary, a resolver and one more replica
+			System.out.println("(qm) bench: Fill a QoS DB with " + directories + " directories.");
+			Random rnd = new Random(directories);
+			_db.begin();
+			for (int c = 0; c < containers; c++) {
+				ContainerStatus status = new ContainerStatus();
+				status.ContainerId = "bench-container" + c;
+				status.RnsPath = "grid:/containers/bench" + c;
+				_db.update("INSERT INTO Containers VALUES (" + status.to_sql_params() + ");", status.to_sql_args());
+			}
+			for (int d = 0; d < directories; d++) {
+				String dir = "grid:/home/bench/dir" + d;
+				String spec_id = "bench-spec" + rnd.nextInt(specs);
+				int first = rnd.nextInt(containers);
+				for (int r = 0; r < 3; r++) {
+					_db.update("INSERT INTO Relationships VALUES (?, ?, ?, ?, ?, ?);",
+							dir, spec_id, "bench-container" + ((first + r) % containers),
+							r == 0 ? 1 : 0, r == 1 ? 1 : 0, r);
+				}
+			}
+			_db.commit();
+
+			// the query shapes of db_rel_query and db_get_container_id_from_rns
+			final String[][] queries = {
+				{ "db_specs_related_to_container", "SELECT SpecId FROM Relationships WHERE ContainerId = ?;", "bench-container" },
+				{ "db_dirs_related_to_spec", "SELECT Directory FROM Relationships WHERE SpecId = ?;", "bench-spec" },
+				{ "db_containers_related_to_dir", "SELECT ContainerId FROM Relationships WHERE Directory = ? AND ReplicaFlag >= 0;", "grid:/home/bench/dir" },
+				{ "db_primary_of_dir", "SELECT ContainerId FROM Relationships WHERE Directory = ? AND ReplicaFlag = 1;", "grid:/home/bench/dir" },
+				{ "db_container_id_from_rns", "SELECT ContainerId FROM Containers WHERE RnsPath = ?;", "grid:/containers/bench" },
+			};
+			final int[] ranges = { containers, specs, directories, directories, containers };
+			for (int pass = 0; pass < 2; pass++) {
+				String schema = "schema_v" + _db.query_int("PRAGMA user_version;");
+				for (int q = 0; q < queries.length; q++) {
+					final String sql = queries[q][1];
+					final String prefix = queries[q][2];
+					final int range = ranges[q];
+					results.add(bench_run(new BenchCase(queries[q][0], schema, containers) {
+						private int next = 0;
+
+						@Override
+						public long run() {
+							try {
+								next = (next + 7919) % range;
+								return _db.query_strings(sql, prefix + next).size();
+							} catch (Exception e) {
+								return -1;
+							}
+						}
+					}, 1));
+				}
+				if (pass == 0 && !db_migrate()) break;
+			}
+		} catch (Exception e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+		} finally {
+			_db.close();
+			_db = saved_db;
+			if (db_file != null) db_file.delete();
+		}
+		return results;
+	}
+
+	/**
+	 * QoS Benchmark: Internal benchmark suite of the QoS scheduler, checker
+	 * and DB queries. Neither the grid nor the QoS DB are touched. Results
+	 * are written as JSON to the output path, or to stdout.
+	 * @param output_path local file for the JSON results, or null
+	 * @return
+	 */
+	private boolean bench_suite(String output_path) {
+		java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		if (mx instanceof com.sun.management.ThreadMXBean) {
+			((com.sun.management.ThreadMXBean) mx).setThreadAllocatedMemoryEnabled(true);
+		}
+		List<String> results = bench_scheduler();
+		results.addAll(bench_db());
+
+		String json = "{\n"
+				+ "  \"benchmark\": \"qos-scheduler\",\n"
+				+ "  \"java_version\": \"" + System.getProperty("java.version") + "\",\n"
+				+ "  \"processors\": " + Runtime.getRuntime().availableProcessors() + ",\n"
+				+ "  \"spec\": {\"Reliability\": " + BENCH_SPEC_RELIABILITY
+				+ ", \"Availability\": " + BENCH_SPEC_AVAILABILITY + "},\n"
+				+ "  \"db_directories\": " + BENCH_DB_DIRECTORIES + ",\n"
+				+ "  \"results\": [\n";
+		for (int i = 0; i < results.size(); i++) {
+			json += results.get(i) + (i < results.size() - 1 ? ",\n" : "\n");
+		}
+		json += "  ]\n}\n";
+
+		if (output_path == null) {
+			System.out.print(json);
+			return true;
+		}
+		PrintStream out = null;
+		try {
+			out = new PrintStream(new FileOutputStream(output_path));
+			out.print(json);
+			System.out.println("(qm) bench: Results written to " + output_path);
+		} catch (IOException e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			return false;
+		} finally {
+			StreamUtils.close(out);
 		}
 		return true;
 	}
@@ -2726,48 +5831,165 @@ public class QosManagerTool extends BaseGridTool
 		return status;
 	}
 
-	private boolean clean_replicas() {
-		System.out.println("(qm) Warning: Cleaning all unused replicas.");
-		List<String> dirs = db_get_dir_list();
-		for (int i = 0; i < dirs.size(); i++) {
-			GeniiPath p = new GeniiPath(dirs.get(i));
-			String dir = p.lookupRNS().toString();
+	/**
+	 * QoS Monitor: Destroy the unused replicas of one directory, on a cleaner
+	 * thread. A replica that cannot be destroyed is reported and skipped.
+	 */
+	private class CleanTask implements Callable<List<Integer>>
+	{
+		private final String dir; // as stored in the DB
+		private final List<Integer> replica_ids;
+		private final ICallingContext context;
+
+		public CleanTask(String dir, List<Integer> replica_ids, ICallingContext context) {
+			this.dir = dir;
+			this.replica_ids = replica_ids;
+			this.context = context;
+		}
+
+		@Override
+		public List<Integer> call() throws IOException {
+			Closeable assumed = ContextManager.temporarilyAssumeContext(context);
 			try {
-				System.out.println("(qm) monitor: Replicas before cleaning: " + dir);
-				listReplicas(dir);
-			} catch (Exception e) {
-				System.out.println(e.getClass().getName() + ": " + e.getMessage());
+				List<Integer> removed = new ArrayList<Integer>();
+				String path = new GeniiPath(dir).lookupRNS().toString();
+				for (int id: replica_ids) {
+					int actual_id = Math.abs(id) - 1;
+					int err = 0;
+					try {
+						err = destroyReplica(path, actual_id);
+					} catch (Exception e) {
+						System.out.println(e.getClass().getName() + ": " + e.getMessage());
+						err = -1;
+					}
+					if (err != 0) {
+						System.out.println("(qm) Error: Cannot remove replica ID " + actual_id + " for " + path);
+					} else {
+						System.out.println("(qm) Remove replica ID " + actual_id + " for " + path);
+						removed.add(id);
+					}
+				}
+				return removed;
+			} finally {
+				StreamUtils.close(assumed);
 			}
-			List<Integer> replica_ids = db_get_replica_ids_for_dir(dir);
-			for (int j = 0; j < replica_ids.size(); j++) {
-				int id = replica_ids.get(j);
-				int actual_id = Math.abs(id) - 1;
-				if (id >= 0) continue; // replicas being used
-				int err = 0;
+		}
+	}
+
+	/**
+	 * QoS Monitor: Destroy all unused replicas. Up to _clean_threads
+	 * directories are cleaned at a time, and a failure only affects its own
+	 * directory. The records of the destroyed replicas are removed in one
+	 * transaction at the end.
+	 * @return true if every unused replica is destroyed
+	 */
+	private boolean clean_replicas() {
+		System.out.println("(qm) Warning: Cleaning all unused replicas.");
+		Map<String, List<Integer>> unused = db_get_unused_replicas();
+		if (unused.isEmpty()) {
+			System.out.println("(qm) No unused replicas.");
+			return true;
+		}
+		ICallingContext context;
+		try {
+			context = ContextManager.getExistingContext();
+		} catch (IOException e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+			return false;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(_clean_threads, unused.size()),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "qos-cleaner");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		List<String> dirs = new ArrayList<String>(unused.keySet());
+		List<Future<List<Integer>>> futures = new ArrayList<Future<List<Integer>>>();
+		for (String dir: dirs) {
+			futures.add(pool.submit(new CleanTask(dir, unused.get(dir), context)));
+		}
+
+		Map<String, List<Integer>> removed = new HashMap<String, List<Integer>>();
+		int replicas = 0, failed_dirs = 0;
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				List<Integer> ids;
 				try {
-					GeniiPath path = new GeniiPath(dir);
-					err = destroyReplica(path.lookupRNS().toString(), actual_id);
-				} catch (Exception e) {
-					System.out.println(e.getClass().getName() + ": " + e.getMessage());
-					err = -1;
+					ids = futures.get(i).get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					System.out.println(cause.getClass().getName() + ": " + cause.getMessage());
+					ids = new ArrayList<Integer>();
 				}
-				if (err != 0) {
-					System.out.println("(qm) Error: Cannot remove replica ID " + actual_id + " for " + dir);
-					return false;
-				} else {
-					boolean succ = db_remove_replica_for_dir(dir, id);
-					assert(succ);
-					System.out.println("(qm) Remove replica ID " + actual_id + " for " + dir);
+				if (!ids.isEmpty()) {
+					removed.put(dirs.get(i), ids);
+					replicas += ids.size();
 				}
-				try {
-					System.out.println("(qm) monitor: Replicas after cleaning: " + dir);
-					listReplicas(dir);
-				} catch (Exception e) {
-					System.out.println(e.getClass().getName() + ": " + e.getMessage());
+				if (ids.size() < unused.get(dirs.get(i)).size()) failed_dirs++;
+			}
+		} catch (InterruptedException e) {
+			// keep the records of the replicas destroyed so far
+			Thread.currentThread().interrupt();
+			failed_dirs = dirs.size() - removed.size();
+		} finally {
+			pool.shutdownNow();
+		}
+
+		boolean succ = db_remove_replicas(removed);
+		System.out.println("(qm) Cleaned " + replicas + " replicas in " + removed.size() + " of "
+				+ dirs.size() + " directories, " + failed_dirs + " directories failed.");
+		return succ && failed_dirs == 0;
+	}
+
+	/**
+	 * QoS Monitor: The address of the container that hosts an endpoint, the
+	 * part of its URL before the service path.
+	 * @param epr
+	 * @return
+	 */
+	public static String container_address(EndpointReferenceType epr) {
+		String address = epr.getAddress().toString();
+		int axisIndex = address.indexOf("/axis");
+		return axisIndex >= 0 ? address.substring(0, axisIndex) : address;
+	}
+
+	/**
+	 * QoS Monitor: Starting copy concurrency for the containers in the local
+	 * copy of the QoS DB, keyed by RnsPath, for CopyMachine to tune from. A
+	 * container gets CoresAvailable copies, but no more than its StorageWBW
+	 * fills at COPY_STREAM_WBW per copy. The DB is read on its own
+	 * connection and is not synchronized; a stale copy only moves the start
+	 * of the tuning. Nothing is looked up in the grid here, CopyMachine
+	 * resolves a container only when it copies into it.
+	 * @return
+	 */
+	public static Map<String, Integer> copy_concurrency_seeds() {
+		Map<String, Integer> seeds = new HashMap<String, Integer>();
+		QosManagerTool tool = factory();
+		String db_local_path = tool.db_get_local_path();
+		if (db_local_path == null || !new File(db_local_path).exists()) return seeds;
+		QosDb db = tool.new QosDb(db_local_path);
+		try {
+			ResultSet rs = db.query("SELECT RnsPath, CoresAvailable, StorageWBW FROM Containers;");
+			while (rs.next()) {
+				int seed = rs.getInt(2) > 0 ? rs.getInt(2) : Integer.MAX_VALUE;
+				if (rs.getDouble(3) > 0) {
+					seed = Math.min(seed, (int) Math.ceil(rs.getDouble(3) / COPY_STREAM_WBW));
+				}
+				if (rs.getString(1) != null && seed != Integer.MAX_VALUE) {
+					seeds.put(rs.getString(1), Math.max(seed, 1));
 				}
 			}
+			rs.close();
+		} catch (Exception e) {
+			System.out.println(e.getClass().getName() + ": " + e.getMessage());
+		} finally {
+			db.close();
 		}
-		return true;
+		return seeds;
 	}
 
 	/**************************************************************************